@@ -48,11 +48,13 @@ abstract class ActivityBase extends AppCompatActivity
     protected void onResume() {
         Log.i(Helper.TAG, "Resume " + this.getClass().getName());
         super.onResume();
+        SyncPacer.resumed();
     }
 
     @Override
     protected void onPause() {
         Log.i(Helper.TAG, "Pause " + this.getClass().getName());
+        SyncPacer.paused();
         super.onPause();
     }
 
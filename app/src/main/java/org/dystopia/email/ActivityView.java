@@ -567,6 +567,7 @@ public class ActivityView extends ActivityBase
                             draft.account = drafts.account;
                             draft.folder = drafts.id;
                             draft.msgid = EntityMessage.generateMessageId();
+                            draft.thread = draft.msgid;
                             draft.to = new Address[] {Helper.myAddress()};
                             draft.subject =
                                 context.getString(R.string.app_name)
@@ -34,6 +34,7 @@ import android.view.ViewGroup
 import android.widget.Toast
 import androidx.core.content.FileProvider
 import androidx.lifecycle.LifecycleOwner
+import androidx.lifecycle.Observer
 import androidx.localbroadcastmanager.content.LocalBroadcastManager
 import androidx.recyclerview.widget.DiffUtil
 import androidx.recyclerview.widget.ListUpdateCallback
@@ -47,6 +48,7 @@ class AdapterAttachment(
 ) : RecyclerView.Adapter<AdapterAttachment.ViewHolder?>() {
     private val debug: Boolean
     private var all: List<EntityAttachment> = ArrayList()
+    private var transfers: Map<Long, Int> = HashMap()
     private val filtered: MutableList<EntityAttachment> = ArrayList()
 
     inner class ViewHolder(binding: ItemAttachmentBinding) : RecyclerView.ViewHolder(binding.root),
@@ -76,6 +78,7 @@ class AdapterAttachment(
         }
 
         internal fun bindTo(attachment: EntityAttachment) {
+            val progress = getProgress(attachment)
             ivDelete.visibility = if (isReadOnly) View.GONE else View.VISIBLE
             tvName.text = attachment.name
 
@@ -89,7 +92,7 @@ class AdapterAttachment(
                 ivStatus.setImageResource(R.drawable.baseline_visibility_24)
                 ivStatus.visibility = View.VISIBLE
             } else {
-                if (attachment.progress == null) {
+                if (progress == null) {
                     ivStatus.setImageResource(R.drawable.baseline_cloud_download_24)
                     ivStatus.visibility = View.VISIBLE
                 } else {
@@ -98,11 +101,11 @@ class AdapterAttachment(
             }
             ivSave.visibility =
                 if (isReadOnly && attachment.available) View.VISIBLE else View.GONE
-            if (attachment.progress != null) {
-                progressbar.progress = attachment.progress
+            if (progress != null) {
+                progressbar.progress = progress
             }
             progressbar.visibility =
-                if (attachment.progress == null || attachment.available) View.GONE else View.VISIBLE
+                if (progress == null || attachment.available) View.GONE else View.VISIBLE
             tvType.text = attachment.type + " " + attachment.cid
             tvType.visibility = if (debug) View.VISIBLE else View.GONE
         }
@@ -143,13 +146,14 @@ class AdapterAttachment(
                         onShare(attachment)
                         return
                     }
-                    if (attachment.progress == null) {
+                    val progress = getProgress(attachment)
+                    if (progress == null) {
                         startDownload(attachment)
                     } else {
                         Toast.makeText(
                             context,
                             String.format(context.getString(R.string.title_attachment_downloading),
-                                String.format("%s%%", attachment.progress)),
+                                String.format("%s%%", progress)),
                             Toast.LENGTH_LONG
                         ).show()
                     }
@@ -161,6 +165,24 @@ class AdapterAttachment(
     init {
         debug = PreferenceManager.getDefaultSharedPreferences(context).getBoolean("debug", false)
         setHasStableIds(true)
+
+        // Running transfers report progress in memory, the database is updated at checkpoints only
+        AttachmentProgress.get().observe(owner, Observer { progress -> setProgress(progress) })
+    }
+
+    private fun getProgress(attachment: EntityAttachment): Int? {
+        return transfers[attachment.id] ?: attachment.progress
+    }
+
+    private fun setProgress(progress: Map<Long, Int>?) {
+        val previous = transfers
+        transfers = progress ?: HashMap()
+        for (i in filtered.indices) {
+            val id = filtered[i].id
+            if (previous[id] != transfers[id]) {
+                notifyItemChanged(i)
+            }
+        }
     }
 
     fun startDownload(attachment: EntityAttachment) {
@@ -138,6 +138,7 @@ public class AdapterMessage extends PagedListAdapter<TupleMessageEx, AdapterMess
 
         public class ViewHolder extends RecyclerView.ViewHolder
         implements View.OnClickListener, View.OnLongClickListener, BottomNavigationView.OnNavigationItemSelectedListener {
+        private Long shown = null; // message id
         private View itemView;
         private View vwColor;
         private ImageView ivExpander;
@@ -1880,6 +1881,7 @@ public class AdapterMessage extends PagedListAdapter<TupleMessageEx, AdapterMess
         holder.unwire();
 
         TupleMessageEx message = getItem(position);
+        setVisible(holder, message == null ? null : message.id);
         if (message == null) {
             holder.clear();
         } else {
@@ -1888,6 +1890,23 @@ public class AdapterMessage extends PagedListAdapter<TupleMessageEx, AdapterMess
         }
     }
 
+    @Override
+    public void onViewRecycled(@NonNull ViewHolder holder) {
+        setVisible(holder, null);
+    }
+
+    // Bodies of messages in the list are downloaded before other messages
+    private void setVisible(ViewHolder holder, Long id) {
+        DownloadScheduler downloads = DownloadScheduler.getInstance();
+        if (holder.shown != null) {
+            downloads.setVisible(holder.shown, false);
+        }
+        holder.shown = id;
+        if (id != null) {
+            downloads.setVisible(id, true);
+        }
+    }
+
     void setSelectionTracker(SelectionTracker<Long> selectionTracker) {
         this.selectionTracker = selectionTracker;
     }
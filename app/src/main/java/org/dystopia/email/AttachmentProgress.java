@@ -0,0 +1,65 @@
+package org.dystopia.email;
+
+/*
+    This file is part of SimpleEmail.
+    Copyright 2018-2020, Distopico (dystopia project) <distopico@riseup.net> and contributors
+
+    This program  is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program  is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Progress of running attachment transfers, observed directly by the attachment list.
+ * The database is only written at coarse checkpoints, so a transfer does not cause
+ * a database write and query invalidation for every buffer.
+ */
+public class AttachmentProgress {
+    private static final Map<Long, Integer> transfers = new HashMap<>(); // attachment id: percent
+    private static final MutableLiveData<Map<Long, Integer>> live = new MutableLiveData<>();
+
+    private static final int CHECKPOINT = 25; // percent
+
+    static void report(DB db, long id, int percent) {
+        Integer previous;
+        synchronized (transfers) {
+            previous = transfers.put(id, percent);
+            if (previous != null && previous == percent) {
+                return;
+            }
+            // Posted values are coalesced until the main thread picks them up
+            live.postValue(new HashMap<>(transfers));
+        }
+
+        if (previous == null || previous / CHECKPOINT != percent / CHECKPOINT) {
+            db.attachment().setProgress(id, percent);
+        }
+    }
+
+    static void done(long id) {
+        synchronized (transfers) {
+            if (transfers.remove(id) != null) {
+                live.postValue(new HashMap<>(transfers));
+            }
+        }
+    }
+
+    static LiveData<Map<Long, Integer>> get() {
+        return live;
+    }
+}
@@ -0,0 +1,153 @@
+package org.dystopia.email;
+
+/*
+    This file is part of SimpleEmail.
+    Copyright 2018-2020, Distopico (dystopia project) <distopico@riseup.net> and contributors
+
+    This program  is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program  is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import android.Manifest;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.provider.ContactsContract;
+import android.util.Log;
+import android.util.LruCache;
+
+import androidx.core.content.ContextCompat;
+
+import java.util.List;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Contact id and display name by email address, so synchronizing many messages of
+ * the same senders queries the contacts provider once per sender.
+ * The cache is cleared when contacts change.
+ */
+public class ContactCache {
+    private final Context context;
+    private final LruCache<String, Contact> cache = new LruCache<>(CACHE_SIZE);
+
+    private static final int CACHE_SIZE = 500; // addresses
+    private static final Contact NONE = new Contact(-1, null); // not a contact
+
+    private static ContactCache instance = null;
+
+    static class Contact {
+        final long id;
+        final String name;
+
+        Contact(long id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    private ContactCache(Context context) {
+        this.context = context.getApplicationContext();
+        this.context.getContentResolver().registerContentObserver(
+            ContactsContract.AUTHORITY_URI, true, new ContentObserver(null) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    Log.i(Helper.TAG, "Contacts changed");
+                    cache.evictAll();
+                }
+            });
+    }
+
+    static synchronized ContactCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new ContactCache(context);
+        }
+        return instance;
+    }
+
+    // Warms the cache with the senders of the messages before a database transaction
+    void prefetch(List<Message> imessages) {
+        if (!hasPermission()) {
+            return;
+        }
+
+        for (Message imessage : imessages) {
+            try {
+                Address[] from = imessage.getFrom();
+                if (from != null) {
+                    for (Address address : from) {
+                        if (address instanceof InternetAddress) {
+                            lookup(((InternetAddress) address).getAddress());
+                        }
+                    }
+                }
+            } catch (MessagingException ex) {
+                Log.w(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
+            }
+        }
+    }
+
+    Contact lookup(String email) {
+        if (email == null || !hasPermission()) {
+            return null;
+        }
+
+        Contact contact = cache.get(email);
+        if (contact == null) {
+            contact = query(email);
+            if (contact == null) {
+                return null;
+            }
+            cache.put(email, contact);
+        }
+        return (contact == NONE ? null : contact);
+    }
+
+    private boolean hasPermission() {
+        return (ContextCompat.checkSelfPermission(context, Manifest.permission.READ_CONTACTS)
+            == PackageManager.PERMISSION_GRANTED);
+    }
+
+    private Contact query(String email) {
+        Cursor cursor = null;
+        try {
+            ContentResolver resolver = context.getContentResolver();
+            cursor = resolver.query(ContactsContract.CommonDataKinds.Email.CONTENT_URI,
+                new String[] {ContactsContract.CommonDataKinds.Photo.CONTACT_ID,
+                    ContactsContract.Contacts.DISPLAY_NAME},
+                ContactsContract.CommonDataKinds.Email.ADDRESS + " = ?", new String[] {email},
+                null);
+            if (cursor != null && cursor.moveToNext()) {
+                int colContactId =
+                    cursor.getColumnIndex(ContactsContract.CommonDataKinds.Photo.CONTACT_ID);
+                int colDisplayName =
+                    cursor.getColumnIndex(ContactsContract.Contacts.DISPLAY_NAME);
+                return new Contact(cursor.getLong(colContactId), cursor.getString(colDisplayName));
+            }
+            return NONE;
+        } catch (Throwable ex) {
+            // Not cached, to try again next time
+            Log.e(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+}
@@ -46,7 +46,7 @@ import javax.mail.internet.InternetAddress;
 // https://developer.android.com/topic/libraries/architecture/room.html
 
 @Database(
-    version = 26,
+    version = 32,
     entities = {
         EntityIdentity.class,
         EntityAccount.class,
@@ -55,7 +55,9 @@ import javax.mail.internet.InternetAddress;
         EntityAttachment.class,
         EntityOperation.class,
         EntityAnswer.class,
-        EntityLog.class
+        EntityLog.class,
+        EntityThread.class,
+        EntityReference.class
     })
 @TypeConverters({DB.Converters.class})
 public abstract class DB extends RoomDatabase {
@@ -75,6 +77,8 @@ public abstract class DB extends RoomDatabase {
 
     public abstract DaoLog log();
 
+    public abstract DaoThread thread();
+
     private static DB sInstance;
 
     private static final String DB_NAME = "email";
@@ -112,6 +116,49 @@ public abstract class DB extends RoomDatabase {
         }
     }
 
+    // Latest message and counts of the visible messages of a thread in a folder.
+    // Like the former folder query, counts are per folder: replies in other folders, like sent,
+    // are not counted in the folder list, but are shown when the thread is opened.
+    // The unified inbox sums the rows of the unified folders, trash and outbox query the messages.
+    private static final String THREAD_COLUMNS =
+        "`account`, `folder`, `thread`, `id`, MAX(`received`)" +
+            ", COUNT(*), SUM(NOT `ui_seen`), SUM(`ui_flagged`)";
+
+    // Recomputes the thread rows of a changed message, using index_message_folder_thread
+    private static String updateThread(String row) {
+        return "DELETE FROM `thread` WHERE `folder` = " + row + ".`folder` AND `thread` = " + row + ".`thread`;" +
+            " INSERT INTO `thread`" +
+            " (`account`, `folder`, `thread`, `latest`, `received`, `count`, `unseen`, `flagged`)" +
+            " SELECT " + THREAD_COLUMNS + " FROM `message`" +
+            " WHERE `folder` = " + row + ".`folder` AND `thread` = " + row + ".`thread`" +
+            " AND NOT `ui_hide` AND NOT `ui_found`" +
+            " GROUP BY `folder`, `thread`;";
+    }
+
+    static void createThreadTriggers(SupportSQLiteDatabase db) {
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS `thread_insert` AFTER INSERT ON `message`" +
+            " WHEN NOT NEW.`thread` IS NULL" +
+            " BEGIN " + updateThread("NEW") + " END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS `thread_delete` AFTER DELETE ON `message`" +
+            " WHEN NOT OLD.`thread` IS NULL" +
+            " BEGIN " + updateThread("OLD") + " END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS `thread_update` AFTER UPDATE ON `message`" +
+            " WHEN OLD.`folder` IS NOT NEW.`folder`" +
+            " OR OLD.`thread` IS NOT NEW.`thread`" +
+            " OR OLD.`received` IS NOT NEW.`received`" +
+            " OR OLD.`ui_seen` IS NOT NEW.`ui_seen`" +
+            " OR OLD.`ui_flagged` IS NOT NEW.`ui_flagged`" +
+            " OR OLD.`ui_hide` IS NOT NEW.`ui_hide`" +
+            " OR OLD.`ui_found` IS NOT NEW.`ui_found`" +
+            " BEGIN " + updateThread("OLD") + " " + updateThread("NEW") + " END");
+        // References are only needed while a message of the thread is stored, using index_message_thread
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS `reference_delete` AFTER DELETE ON `message`" +
+            " WHEN NOT OLD.`account` IS NULL AND NOT OLD.`thread` IS NULL" +
+            " BEGIN DELETE FROM `reference` WHERE `account` = OLD.`account` AND `thread` = OLD.`thread`" +
+            " AND NOT EXISTS (SELECT 1 FROM `message`" +
+            " WHERE `account` = OLD.`account` AND `thread` = OLD.`thread`); END");
+    }
+
     private static void logMigration(int startVersion, int endVersion) {
         Log.i(Helper.TAG, "DB migration from version " + startVersion + " to " + endVersion);
     }
@@ -120,6 +167,13 @@ public abstract class DB extends RoomDatabase {
         return builder
             .addCallback(
                 new Callback() {
+                    @Override
+                    public void onCreate(@NonNull SupportSQLiteDatabase db) {
+                        super.onCreate(db);
+                        createThreadTriggers(db);
+                        SearchIndex.createIndex(db);
+                    }
+
                     @Override
                     public void onOpen(SupportSQLiteDatabase db) {
                         Log.i(Helper.TAG, "Database version=" + db.getVersion());
@@ -367,6 +421,90 @@ public abstract class DB extends RoomDatabase {
                     db.execSQL("CREATE INDEX `index_operation_message` ON `operation` (`message`)");
                 }
             })
+            .addMigrations(new Migration(26, 27) {
+                @Override
+                public void migrate(@NonNull SupportSQLiteDatabase db) {
+                    logMigration(startVersion, endVersion);
+                    db.execSQL("ALTER TABLE `folder` ADD COLUMN `uidv` INTEGER");
+                    db.execSQL("ALTER TABLE `folder` ADD COLUMN `modseq` INTEGER");
+                }
+            })
+            .addMigrations(new Migration(27, 28) {
+                @Override
+                public void migrate(@NonNull SupportSQLiteDatabase db) {
+                    logMigration(startVersion, endVersion);
+                    db.execSQL("ALTER TABLE `folder` ADD COLUMN `uidnext` INTEGER");
+                }
+            })
+            .addMigrations(new Migration(28, 29) {
+                @Override
+                public void migrate(@NonNull SupportSQLiteDatabase db) {
+                    logMigration(startVersion, endVersion);
+                    db.execSQL("ALTER TABLE `attachment` ADD COLUMN `section` TEXT");
+                    db.execSQL("ALTER TABLE `attachment` ADD COLUMN `encoding` TEXT");
+                }
+            })
+            .addMigrations(new Migration(29, 30) {
+                @Override
+                public void migrate(@NonNull SupportSQLiteDatabase db) {
+                    logMigration(startVersion, endVersion);
+                    db.execSQL("CREATE INDEX `index_message_account_msgid` ON `message` (`account`, `msgid`)");
+                }
+            })
+            .addMigrations(new Migration(30, 31) {
+                @Override
+                public void migrate(@NonNull SupportSQLiteDatabase db) {
+                    logMigration(startVersion, endVersion);
+                    db.execSQL("CREATE INDEX `index_message_folder_thread` ON `message` (`folder`, `thread`)");
+                    db.execSQL("UPDATE `message` SET `thread` = IFNULL(`msgid`, CAST(`id` AS TEXT))" +
+                        " WHERE `thread` IS NULL");
+
+                    db.execSQL("CREATE TABLE `thread`" +
+                        " (`id` INTEGER PRIMARY KEY AUTOINCREMENT" +
+                        ", `account` INTEGER" +
+                        ", `folder` INTEGER NOT NULL" +
+                        ", `thread` TEXT NOT NULL" +
+                        ", `latest` INTEGER NOT NULL" +
+                        ", `received` INTEGER NOT NULL" +
+                        ", `count` INTEGER NOT NULL" +
+                        ", `unseen` INTEGER NOT NULL" +
+                        ", `flagged` INTEGER NOT NULL)");
+                    db.execSQL("CREATE UNIQUE INDEX `index_thread_folder_thread` ON `thread` (`folder`, `thread`)");
+                    db.execSQL("CREATE INDEX `index_thread_folder_received` ON `thread` (`folder`, `received`)");
+                    db.execSQL("CREATE INDEX `index_thread_account_thread` ON `thread` (`account`, `thread`)");
+                    db.execSQL("INSERT INTO `thread`" +
+                        " (`account`, `folder`, `thread`, `latest`, `received`, `count`, `unseen`, `flagged`)" +
+                        " SELECT " + THREAD_COLUMNS + " FROM `message`" +
+                        " WHERE NOT `thread` IS NULL AND NOT `ui_hide` AND NOT `ui_found`" +
+                        " GROUP BY `folder`, `thread`");
+
+                    db.execSQL("CREATE TABLE `reference`" +
+                        " (`id` INTEGER PRIMARY KEY AUTOINCREMENT" +
+                        ", `account` INTEGER NOT NULL" +
+                        ", `msgid` TEXT NOT NULL" +
+                        ", `thread` TEXT NOT NULL" +
+                        ", FOREIGN KEY(`account`) REFERENCES `account`(`id`) ON UPDATE NO ACTION ON DELETE CASCADE)");
+                    db.execSQL("CREATE UNIQUE INDEX `index_reference_account_msgid` ON `reference` (`account`, `msgid`)");
+                    db.execSQL("CREATE INDEX `index_reference_account_thread` ON `reference` (`account`, `thread`)");
+                    // References of existing messages are not known, only their Message-ID and thread
+                    db.execSQL("INSERT OR IGNORE INTO `reference` (`account`, `msgid`, `thread`)" +
+                        " SELECT `account`, `thread`, `thread` FROM `message`" +
+                        " WHERE NOT `account` IS NULL AND NOT `ui_found`");
+                    db.execSQL("INSERT OR IGNORE INTO `reference` (`account`, `msgid`, `thread`)" +
+                        " SELECT `account`, `msgid`, `thread` FROM `message`" +
+                        " WHERE NOT `account` IS NULL AND NOT `msgid` IS NULL AND NOT `ui_found`");
+
+                    createThreadTriggers(db);
+                }
+            })
+            .addMigrations(new Migration(31, 32) {
+                @Override
+                public void migrate(@NonNull SupportSQLiteDatabase db) {
+                    logMigration(startVersion, endVersion);
+                    SearchIndex.createIndex(db);
+                    SearchIndex.populateIndex(db);
+                }
+            })
             .build();
     }
 
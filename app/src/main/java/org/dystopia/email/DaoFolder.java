@@ -108,6 +108,12 @@ public interface DaoFolder {
     @Query("UPDATE folder SET sync_state = :state WHERE id = :id")
     int setFolderSyncState(long id, String state);
 
+    @Query("UPDATE folder SET uidv = :uidv, modseq = :modseq WHERE id = :id")
+    int setFolderModSeq(long id, Long uidv, Long modseq);
+
+    @Query("UPDATE folder SET uidnext = :uidnext WHERE id = :id")
+    int setFolderUidNext(long id, Long uidnext);
+
     @Query("UPDATE folder SET error = :error WHERE id = :id")
     int setFolderError(long id, String error);
 
@@ -25,7 +25,9 @@ import androidx.paging.DataSource;
 import androidx.room.Dao;
 import androidx.room.Insert;
 import androidx.room.Query;
+import androidx.room.RawQuery;
 import androidx.room.Update;
+import androidx.sqlite.db.SupportSQLiteQuery;
 
 import java.util.List;
 
@@ -133,6 +135,68 @@ public interface DaoMessage {
     DataSource.Factory<Integer, TupleMessageEx> pagedFolder(
         long folderId, String folderType, String sort, boolean found, boolean debug);
 
+    // Precomputed threads, see EntityThread, without hidden messages and search results.
+    // Counts are per folder like pagedFolder, the unified inbox sums the unified folders of an account.
+
+    @Query(
+        "SELECT message.*"
+            + ", account.name AS accountName, account.color AS accountColor"
+            + ", folder.name AS folderName, folder.display AS folderDisplay, folder.type AS folderType"
+            + ", SUM(thread.count) AS count"
+            + ", SUM(CASE WHEN folder.type = '"
+            + EntityFolder.ARCHIVE
+            + "'"
+            + "    OR folder.type = '"
+            + EntityFolder.OUTBOX
+            + "'"
+            + "    OR folder.type = '"
+            + EntityFolder.DRAFTS
+            + "' THEN 0 ELSE thread.unseen END) AS unseen"
+            + ", SUM(CASE WHEN folder.type = '"
+            + EntityFolder.ARCHIVE
+            + "'"
+            + "    OR folder.type = '"
+            + EntityFolder.OUTBOX
+            + "'"
+            + "    OR folder.type = '"
+            + EntityFolder.DRAFTS
+            + "' THEN thread.count ELSE thread.count - thread.flagged END) AS unflagged"
+            + ", (SELECT COUNT(a.id) FROM attachment a WHERE a.message = message.id) AS attachments"
+            + ", MAX(thread.received) AS dummy"
+            + " FROM thread"
+            + " JOIN account ON account.id = thread.account"
+            + " JOIN folder ON folder.id = thread.folder"
+            + " JOIN message ON message.id = thread.latest"
+            + " WHERE account.`synchronize`"
+            + " AND folder.unified"
+            + " GROUP BY thread.account, thread.thread"
+            + " ORDER BY CASE"
+            + "  WHEN 'unread' = :sort THEN unseen > 0"
+            + "  WHEN 'starred' = :sort THEN unflagged < count"
+            + "  ELSE 0"
+            + " END DESC, dummy DESC, message.sent DESC")
+    DataSource.Factory<Integer, TupleMessageEx> pagedUnifiedThreads(String sort);
+
+    @Query(
+        "SELECT message.*"
+            + ", account.name AS accountName, account.color AS accountColor"
+            + ", folder.name AS folderName, folder.display AS folderDisplay, folder.type AS folderType"
+            + ", thread.count AS count"
+            + ", thread.unseen AS unseen"
+            + ", thread.count - thread.flagged AS unflagged"
+            + ", (SELECT COUNT(a.id) FROM attachment a WHERE a.message = message.id) AS attachments"
+            + " FROM thread"
+            + " JOIN message ON message.id = thread.latest"
+            + " JOIN account ON account.id = message.account"
+            + " JOIN folder ON folder.id = message.folder"
+            + " WHERE thread.folder = :folderId"
+            + " ORDER BY CASE"
+            + "  WHEN 'unread' = :sort THEN thread.unseen > 0"
+            + "  WHEN 'starred' = :sort THEN thread.flagged > 0"
+            + "  ELSE 0"
+            + " END DESC, thread.received DESC, message.sent DESC")
+    DataSource.Factory<Integer, TupleMessageEx> pagedFolderThreads(long folderId, String sort);
+
     @Query(
         "SELECT message.*"
             + ", account.name AS accountName, account.color AS accountColor"
@@ -158,6 +222,10 @@ public interface DaoMessage {
     DataSource.Factory<Integer, TupleMessageEx> pagedThread(
         long account, long folderId, String thread, String sort, boolean debug);
 
+    // See SearchIndex.getSearchQuery
+    @RawQuery(observedEntities = {EntityMessage.class, EntityAccount.class, EntityFolder.class})
+    DataSource.Factory<Integer, TupleMessageEx> pagedSearch(SupportSQLiteQuery query);
+
     @Query("SELECT COUNT(id)" + " FROM message" + " WHERE id = :id")
     int countMessage(long id);
 
@@ -234,12 +302,18 @@ public interface DaoMessage {
             + " AND NOT ui_found" /* keep found messages */)
     List<Long> getUids(long folderId, long received);
 
+    @Query("SELECT msgid FROM message WHERE account = :account AND NOT msgid IS NULL")
+    List<String> getMsgIds(long account);
+
     @Insert
     long insertMessage(EntityMessage message);
 
     @Update
     int updateMessage(EntityMessage message);
 
+    @Query("UPDATE message SET thread = :to WHERE account = :account AND thread = :from")
+    int mergeThread(long account, String from, String to);
+
     @Query("UPDATE message SET uid = :uid WHERE id = :id")
     int setMessageUid(long id, Long uid);
 
@@ -287,6 +361,9 @@ public interface DaoMessage {
     @Query("DELETE FROM message WHERE folder = :folderId AND uid = :uid")
     int deleteMessage(long folderId, long uid);
 
+    @Query("DELETE FROM message WHERE folder = :folderId AND uid IN (:uids)")
+    int deleteMessages(long folderId, List<Long> uids);
+
     @Query("DELETE FROM message WHERE folder = :folderId AND NOT uid IS NULL")
     int deleteLocalMessages(long folderId);
 
@@ -37,6 +37,9 @@ public interface DaoOperation {
     @Query("SELECT * FROM operation ORDER BY id")
     LiveData<List<EntityOperation>> liveOperations();
 
+    @Query("SELECT * FROM operation WHERE id = :id")
+    EntityOperation getOperation(long id);
+
     @Query("SELECT COUNT(id) FROM operation" +
         " WHERE folder = :folder" +
         " AND (:name IS NULL OR operation.name = :name)")
@@ -47,4 +50,7 @@ public interface DaoOperation {
 
     @Query("DELETE FROM operation WHERE id = :id")
     void deleteOperation(long id);
+
+    @Query("DELETE FROM operation WHERE id IN (:ids)")
+    void deleteOperations(List<Long> ids);
 }
@@ -0,0 +1,39 @@
+package org.dystopia.email;
+
+/*
+    This file is part of SimpleEmail.
+    Copyright 2018-2020, Distopico (dystopia project) <distopico@riseup.net> and contributors
+
+    This program  is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program  is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+
+import java.util.List;
+
+@Dao
+public interface DaoThread {
+    @Query("SELECT * FROM reference WHERE account = :account AND msgid IN (:msgids)")
+    List<EntityReference> getReferences(long account, List<String> msgids);
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    long insertReference(EntityReference reference);
+
+    @Query("UPDATE reference SET thread = :to WHERE account = :account AND thread = :from")
+    int mergeReferences(long account, String from, String to);
+}
@@ -0,0 +1,182 @@
+package org.dystopia.email;
+
+/*
+    This file is part of SimpleEmail.
+    Copyright 2018-2020, Distopico (dystopia project) <distopico@riseup.net> and contributors
+
+    This program  is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program  is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Orders body and attachment downloads: messages the user opened first, then messages
+ * shown in the list, then background prefetch. Background prefetch yields between
+ * downloads and chunks while more important downloads are waiting or running.
+ */
+public class DownloadScheduler {
+    static final int PRIORITY_OPENED = 0;
+    static final int PRIORITY_VISIBLE = 1;
+    static final int PRIORITY_PREFETCH = 2;
+
+    private long sequence = 0;
+    private final int[] active = new int[PRIORITY_PREFETCH + 1]; // queued or running jobs
+    private final Set<Long> visible = new HashSet<>(); // message ids
+    private final Set<Long> claimed = new HashSet<>(); // operation ids
+
+    private final ThreadLocal<Integer> priority = new ThreadLocal<>();
+
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+        DOWNLOAD_THREADS, DOWNLOAD_THREADS,
+        60L, TimeUnit.SECONDS,
+        new PriorityBlockingQueue<Runnable>(),
+        Helper.backgroundThreadFactory);
+
+    private static final int DOWNLOAD_THREADS = 2;
+    private static final long YIELD_CHECK = 1000L; // milliseconds
+
+    private static DownloadScheduler instance = null;
+
+    private DownloadScheduler() {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    static synchronized DownloadScheduler getInstance() {
+        if (instance == null) {
+            instance = new DownloadScheduler();
+        }
+        return instance;
+    }
+
+    void schedule(int priority, String name, Runnable runnable) {
+        Job job;
+        synchronized (this) {
+            active[priority]++;
+            job = new Job(name, priority, sequence++, runnable);
+        }
+        executor.execute(job);
+        Log.i(Helper.TAG, "Scheduled " + name + " priority=" + priority);
+    }
+
+    // Marks the current thread as running downloads of the given priority
+    void enter(int priority) {
+        this.priority.set(priority);
+    }
+
+    void exit() {
+        this.priority.remove();
+    }
+
+    // Called between downloads and chunks, returns when no more important download is pending
+    void yield() {
+        Integer p = priority.get();
+        if (p == null) {
+            return;
+        }
+
+        synchronized (this) {
+            boolean logged = false;
+            while (isPreempted(p)) {
+                if (!logged) {
+                    Log.i(Helper.TAG, "Download priority=" + p + " yielding");
+                    logged = true;
+                }
+                try {
+                    wait(YIELD_CHECK);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private boolean isPreempted(int p) {
+        for (int i = 0; i < p; i++) {
+            if (active[i] > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized void setVisible(long message, boolean shown) {
+        if (shown) {
+            visible.add(message);
+        } else {
+            visible.remove(message);
+        }
+    }
+
+    synchronized List<Long> getVisible() {
+        return new ArrayList<>(visible);
+    }
+
+    // Prevents downloading the same body or attachment from two threads at once
+    synchronized boolean claim(long operation) {
+        return claimed.add(operation);
+    }
+
+    synchronized void release(long operation) {
+        claimed.remove(operation);
+    }
+
+    private class Job implements Runnable, Comparable<Job> {
+        private final String name;
+        private final int priority;
+        private final long sequence;
+        private final Runnable runnable;
+
+        Job(String name, int priority, long sequence, Runnable runnable) {
+            this.name = name;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            Thread thread = Thread.currentThread();
+            String original = thread.getName();
+            try {
+                thread.setName(name);
+                enter(priority);
+                runnable.run();
+            } finally {
+                exit();
+                thread.setName(original);
+                synchronized (DownloadScheduler.this) {
+                    active[priority]--;
+                    DownloadScheduler.this.notifyAll();
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (priority != other.priority) {
+                return (priority < other.priority ? -1 : 1);
+            }
+            return (sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1));
+        }
+    }
+}
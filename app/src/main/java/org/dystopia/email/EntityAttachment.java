@@ -20,6 +20,8 @@ package org.dystopia.email;
 */
 
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -29,8 +31,12 @@ import androidx.room.Ignore;
 import androidx.room.Index;
 import androidx.room.PrimaryKey;
 
+import com.sun.mail.imap.IMAPMessage;
+
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -38,6 +44,7 @@ import java.io.OutputStream;
 
 import javax.mail.BodyPart;
 import javax.mail.MessagingException;
+import javax.mail.internet.MimeUtility;
 
 import static androidx.room.ForeignKey.CASCADE;
 
@@ -62,6 +69,7 @@ import static androidx.room.ForeignKey.CASCADE;
 public class EntityAttachment {
     static final String TABLE_NAME = "attachment";
     static final int ATTACHMENT_BUFFER_SIZE = 8192; // bytes
+    static final int ATTACHMENT_CHUNK_SIZE = 256 * 1024; // bytes, default partial fetch size
 
     @PrimaryKey(autoGenerate = true)
     public Long id;
@@ -75,6 +83,8 @@ public class EntityAttachment {
     public String type;
     public String cid; // Content-ID
     public Integer size;
+    public String section; // IMAP body part, like 2.1
+    public String encoding; // Content-Transfer-Encoding
 
     public Integer progress;
     @NonNull
@@ -89,7 +99,59 @@ public class EntityAttachment {
         return new File(dir, Long.toString(id));
     }
 
-    void download(Context context, DB db) throws MessagingException, IOException {
+    // Still encoded data of an unfinished download
+    static File getPartialFile(Context context, Long id) {
+        return new File(getFile(context, id).getPath() + ".part");
+    }
+
+    // Fetches the stored body part only, instead of walking the message structure
+    private InputStream getInputStream(Context context, DB db, IMAPMessage imessage)
+        throws MessagingException, IOException {
+        if (section == null) {
+            return part.getInputStream();
+        }
+
+        // The length of the partial file is the offset an interrupted download resumes from
+        File partial = getPartialFile(context, this.id);
+        long offset = partial.length();
+        int chunk = getChunkSize(context);
+        if (offset > 0) {
+            Log.i(Helper.TAG, "Resuming attachment download offset=" + offset);
+        }
+
+        OutputStream os = new FileOutputStream(partial, true);
+        try {
+            while (true) {
+                byte[] data = ImapHelper.peekBody(imessage, section, offset, chunk);
+                os.write(data);
+                offset += data.length;
+
+                // Encoded size of the body structure
+                if (this.size != null && this.size > 0) {
+                    AttachmentProgress.report(db, this.id, (int) Math.min(100, offset * 100 / this.size));
+                }
+
+                if (data.length < chunk) {
+                    break;
+                }
+
+                // Background downloads pause for downloads the user is waiting for
+                DownloadScheduler.getInstance().yield();
+            }
+        } finally {
+            os.close();
+        }
+
+        InputStream is = new BufferedInputStream(new FileInputStream(partial));
+        return (encoding == null ? is : MimeUtility.decode(is, encoding));
+    }
+
+    private static int getChunkSize(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        return prefs.getInt("download_chunk_size", ATTACHMENT_CHUNK_SIZE / 1024) * 1024;
+    }
+
+    void download(Context context, DB db, IMAPMessage imessage) throws MessagingException, IOException {
         // Build filename
         File file = EntityAttachment.getFile(context, this.id);
 
@@ -100,7 +162,7 @@ public class EntityAttachment {
             this.progress = null;
             db.attachment().updateAttachment(this);
 
-            is = this.part.getInputStream();
+            is = getInputStream(context, db, imessage);
             os = new BufferedOutputStream(new FileOutputStream(file));
 
             int size = 0;
@@ -109,11 +171,14 @@ public class EntityAttachment {
                 size += len;
                 os.write(buffer, 0, len);
 
-                // Update progress
-                if (this.size != null) {
-                    db.attachment().setProgress(this.id, size * 100 / this.size);
+                // Update progress, chunked downloads are decoded locally after fetching
+                if (this.size != null && section == null) {
+                    AttachmentProgress.report(db, this.id, size * 100 / this.size);
                 }
             }
+            if (section != null) {
+                getPartialFile(context, this.id).delete();
+            }
 
             // Store attachment data
             this.size = size;
@@ -128,6 +193,7 @@ public class EntityAttachment {
             db.attachment().updateAttachment(this);
             throw ex;
         } finally {
+            AttachmentProgress.done(this.id);
             try {
                 if (is != null) {
                     is.close();
@@ -75,6 +75,9 @@ public class EntityFolder implements Serializable {
     public Boolean unified = false;
     public String state;
     public String sync_state;
+    public Long uidv; // UIDVALIDITY
+    public Long modseq; // HIGHESTMODSEQ
+    public Long uidnext; // UIDNEXT
     public String error;
 
     static final String INBOX = "Inbox";
@@ -123,6 +126,9 @@ public class EntityFolder implements Serializable {
                 && this.unified == other.unified
                 && (this.state == null ? other.state == null : this.state.equals(other.state))
                 && (this.sync_state == null ? other.sync_state == null : this.sync_state.equals(other.sync_state))
+                && (this.uidv == null ? other.uidv == null : this.uidv.equals(other.uidv))
+                && (this.modseq == null ? other.modseq == null : this.modseq.equals(other.modseq))
+                && (this.uidnext == null ? other.uidnext == null : this.uidnext.equals(other.uidnext))
                 && (this.error == null ? other.error == null : this.error.equals(other.error)));
         } else {
             return false;
@@ -79,7 +79,9 @@ import static androidx.room.ForeignKey.CASCADE;
         @Index(
             value = {"msgid", "folder", "ui_found"},
             unique = true),
+        @Index(value = {"account", "msgid"}),
         @Index(value = {"thread"}),
+        @Index(value = {"folder", "thread"}),
         @Index(value = {"received"}),
         @Index(value = {"ui_seen"}),
         @Index(value = {"ui_hide"}),
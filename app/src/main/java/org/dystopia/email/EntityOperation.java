@@ -31,10 +31,13 @@ import androidx.room.Index;
 import androidx.room.PrimaryKey;
 
 import org.json.JSONArray;
+import org.json.JSONException;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static androidx.room.ForeignKey.CASCADE;
 
@@ -157,6 +160,112 @@ public class EntityOperation {
         }
     }
 
+    // Remove operations which would not change the server state when replayed
+    static int compact(DB db, long folder) {
+        List<Long> obsolete = new ArrayList<>();
+        try {
+            db.beginTransaction();
+
+            Map<Long, List<EntityOperation>> byMessage = new HashMap<>();
+            for (EntityOperation op : db.operation().getOperationsByFolder(folder)) {
+                if (op.message != null) {
+                    List<EntityOperation> ops = byMessage.get(op.message);
+                    if (ops == null) {
+                        ops = new ArrayList<>();
+                        byMessage.put(op.message, ops);
+                    }
+                    ops.add(op);
+                }
+            }
+
+            for (List<EntityOperation> ops : byMessage.values()) {
+                if (ops.size() > 1 || SEEN.equals(ops.get(0).name) || FLAG.equals(ops.get(0).name)) {
+                    compact(db, ops, obsolete);
+                }
+            }
+
+            for (int i = 0; i < obsolete.size(); i += 500) {
+                db.operation().deleteOperations(obsolete.subList(i, Math.min(obsolete.size(), i + 500)));
+            }
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (obsolete.size() > 0) {
+            Log.i(Helper.TAG, "Compacted folder=" + folder + " ops=" + obsolete.size());
+        }
+        return obsolete.size();
+    }
+
+    private static void compact(DB db, List<EntityOperation> ops, List<Long> obsolete) {
+        EntityMessage message = db.message().getMessage(ops.get(0).message);
+        if (message == null) {
+            return;
+        }
+
+        // Everything but adding and sending before a delete is useless
+        int delete = -1;
+        for (int i = 0; i < ops.size(); i++) {
+            if (DELETE.equals(ops.get(i).name)) {
+                if (delete < 0) {
+                    delete = i;
+                } else {
+                    obsolete.add(ops.get(i).id);
+                }
+            }
+        }
+        if (delete >= 0) {
+            for (int i = 0; i < delete; i++) {
+                EntityOperation op = ops.get(i);
+                if (!ADD.equals(op.name) && !SEND.equals(op.name)) {
+                    obsolete.add(op.id);
+                }
+            }
+            return;
+        }
+
+        // Only the last seen/flagged value counts and only if it differs from the server
+        EntityOperation seen = null;
+        EntityOperation flag = null;
+        EntityOperation move = null;
+        for (EntityOperation op : ops) {
+            if (SEEN.equals(op.name)) {
+                if (seen != null) {
+                    obsolete.add(seen.id);
+                }
+                seen = op;
+            } else if (FLAG.equals(op.name)) {
+                if (flag != null) {
+                    obsolete.add(flag.id);
+                }
+                flag = op;
+            } else if (MOVE.equals(op.name)) {
+                // Moving again replaces the previous target: one hop from the original folder
+                if (move != null) {
+                    obsolete.add(move.id);
+                }
+                move = op;
+            }
+        }
+
+        try {
+            if (seen != null && new JSONArray(seen.args).getBoolean(0) == message.seen) {
+                obsolete.add(seen.id);
+            }
+            if (flag != null && new JSONArray(flag.args).getBoolean(0) == message.flagged) {
+                obsolete.add(flag.id);
+            }
+            if (move != null && new JSONArray(move.args).getLong(0) == move.folder) {
+                obsolete.add(move.id);
+                db.message().setMessageUiHide(message.id, false);
+            }
+        } catch (JSONException ex) {
+            Log.w(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
+        }
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj instanceof EntityOperation) {
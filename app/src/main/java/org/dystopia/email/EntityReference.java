@@ -0,0 +1,62 @@
+package org.dystopia.email;
+
+/*
+    This file is part of SimpleEmail.
+    Copyright 2018-2020, Distopico (dystopia project) <distopico@riseup.net> and contributors
+
+    This program  is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program  is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.ForeignKey;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+import static androidx.room.ForeignKey.CASCADE;
+
+/**
+ * Thread of a Message-ID seen as message or in References/In-Reply-To headers,
+ * including Message-IDs of messages which are not stored (empty containers),
+ * so replies sharing only a missing ancestor still end up in the same thread.
+ */
+@Entity(
+    tableName = EntityReference.TABLE_NAME,
+    foreignKeys = {
+        @ForeignKey(
+            childColumns = "account",
+            entity = EntityAccount.class,
+            parentColumns = "id",
+            onDelete = CASCADE)
+    },
+    indices = {
+        @Index(
+            value = {"account", "msgid"},
+            unique = true),
+        @Index(value = {"account", "thread"})
+    })
+public class EntityReference {
+    static final String TABLE_NAME = "reference";
+
+    @PrimaryKey(autoGenerate = true)
+    public Long id;
+
+    @NonNull
+    public Long account;
+    @NonNull
+    public String msgid;
+    @NonNull
+    public String thread;
+}
@@ -0,0 +1,60 @@
+package org.dystopia.email;
+
+/*
+    This file is part of SimpleEmail.
+    Copyright 2018-2020, Distopico (dystopia project) <distopico@riseup.net> and contributors
+
+    This program  is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program  is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+/**
+ * Precomputed conversation of a folder: the latest message and the counts of the
+ * visible messages of a thread in the folder. The rows are maintained by database
+ * triggers on the message table, see {@link DB#createThreadTriggers}.
+ */
+@Entity(
+    tableName = EntityThread.TABLE_NAME,
+    foreignKeys = {},
+    indices = {
+        @Index(
+            value = {"folder", "thread"},
+            unique = true),
+        @Index(value = {"folder", "received"}),
+        @Index(value = {"account", "thread"})
+    })
+public class EntityThread {
+    static final String TABLE_NAME = "thread";
+
+    @PrimaryKey(autoGenerate = true)
+    public Long id;
+
+    public Long account;
+    @NonNull
+    public Long folder;
+    @NonNull
+    public String thread; // root Message-ID
+    @NonNull
+    public Long latest; // message id
+    @NonNull
+    public Long received;
+    public int count;
+    public int unseen;
+    public int flagged;
+}
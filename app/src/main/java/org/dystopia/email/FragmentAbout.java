@@ -168,6 +168,7 @@ public class FragmentAbout extends FragmentEx {
                                 draft.account = drafts.account;
                                 draft.folder = drafts.id;
                                 draft.msgid = EntityMessage.generateMessageId();
+                                draft.thread = draft.msgid;
                                 draft.to = new Address[] {Helper.myAddress()};
                                 draft.subject =
                                     context.getString(R.string.app_name)
@@ -1067,7 +1067,7 @@ public class FragmentCompose extends FragmentEx {
 
                     // Update progress
                     if (attachment.size != null) {
-                        db.attachment().setProgress(attachment.id, size * 100 / attachment.size);
+                        AttachmentProgress.report(db, attachment.id, size * 100 / attachment.size);
                     }
                 }
 
@@ -1080,6 +1080,7 @@ public class FragmentCompose extends FragmentEx {
                 attachment.available = true;
                 db.attachment().updateAttachment(attachment);
             } finally {
+                AttachmentProgress.done(attachment.id);
                 try {
                     if (is != null) {
                         is.close();
@@ -65,6 +65,7 @@ class FragmentMessages : FragmentEx() {
     private var folderType: String? = null
     private var thread: String? = null
     private var search: String? = null
+    private var server = false
     private var primary: Long = -1
     private var outbox = false
     private var connected = false
@@ -96,6 +97,7 @@ class FragmentMessages : FragmentEx() {
             folderType = args.getString("folderType")
             thread = args.getString("thread")
             search = args.getString("search")
+            server = args.getBoolean("server", false)
         }
         viewType = if (TextUtils.isEmpty(search)) {
             if (thread == null) {
@@ -482,7 +484,7 @@ class FragmentMessages : FragmentEx() {
         inflater.inflate(R.menu.menu_messages, menu)
         val menuSearch = menu.findItem(R.id.menu_search)
         val searchView = menuSearch.actionView as SearchView
-        searchView.queryHint = getString(R.string.title_search_hint)
+        searchView.queryHint = getString(R.string.title_search_local_hint)
         searchView.setOnQueryTextListener(object : SearchView.OnQueryTextListener {
             override fun onQueryTextSubmit(query: String): Boolean {
                 menuSearch.collapseActionView()
@@ -516,6 +518,7 @@ class FragmentMessages : FragmentEx() {
     override fun onPrepareOptionsMenu(menu: Menu) {
         menu.findItem(R.id.menu_search).isVisible = folder >= 0 && search == null
         menu.findItem(R.id.menu_sort_on).isVisible = TextUtils.isEmpty(search)
+        menu.findItem(R.id.menu_search_server).isVisible = !TextUtils.isEmpty(search) && !server
         menu.findItem(R.id.menu_folders).isVisible = primary >= 0
         menu.findItem(R.id.menu_folders)
                 .setIcon(if (connected) R.drawable.baseline_folder_24 else R.drawable.baseline_folder_open_24)
@@ -558,6 +561,13 @@ class FragmentMessages : FragmentEx() {
                 onMenuMoveSent()
                 true
             }
+            R.id.menu_search_server -> {
+                server = true
+                arguments?.putBoolean("server", true)
+                activity?.invalidateOptionsMenu()
+                loadMessages()
+                true
+            }
             else -> super.onOptionsItemSelected(item)
         }
     }
@@ -672,8 +682,12 @@ class FragmentMessages : FragmentEx() {
             messages?.removeObservers(viewLifecycleOwner)
 
             when (viewType) {
-                ViewType.UNIFIED -> messages = LivePagedListBuilder(db.message().pagedUnifiedInbox(sort, debug),
-                        LOCAL_PAGE_SIZE).build()
+                ViewType.UNIFIED -> {
+                    // Hidden messages are not part of the precomputed threads
+                    val source = if (debug) db.message().pagedUnifiedInbox(sort, debug)
+                    else db.message().pagedUnifiedThreads(sort)
+                    messages = LivePagedListBuilder(source, LOCAL_PAGE_SIZE).build()
+                }
                 ViewType.FOLDER -> {
                     if (searchCallback == null) {
                         searchCallback = BoundaryCallbackMessages(this, model,
@@ -698,8 +712,11 @@ class FragmentMessages : FragmentEx() {
                     val config = PagedList.Config.Builder().setPageSize(LOCAL_PAGE_SIZE)
                             .setInitialLoadSizeHint(LOCAL_PAGE_SIZE).setPrefetchDistance(REMOTE_PAGE_SIZE)
                             .build()
-                    val builder = LivePagedListBuilder(
-                            db.message().pagedFolder(folder, folderType, sort, false, debug), config)
+                    // Trash and outbox show threads across folders
+                    val source = if (debug || EntityFolder.TRASH == folderType || EntityFolder.OUTBOX == folderType)
+                        db.message().pagedFolder(folder, folderType, sort, false, debug)
+                    else db.message().pagedFolderThreads(folder, sort)
+                    val builder = LivePagedListBuilder(source, config)
                     if (browse) {
                         builder.setBoundaryCallback(searchCallback)
                     }
@@ -711,7 +728,10 @@ class FragmentMessages : FragmentEx() {
                 else -> {}
             }
         } else {
-            if (searchCallback == null) {
+            messages?.removeObservers(viewLifecycleOwner)
+
+            // Local results are shown right away, the server is only searched on request
+            if (server && searchCallback == null) {
                 searchCallback = BoundaryCallbackMessages(this, model,
                         object : IBoundaryCallbackMessages {
                             override fun onLoading() {
@@ -738,8 +758,10 @@ class FragmentMessages : FragmentEx() {
             val config = PagedList.Config.Builder().setPageSize(LOCAL_PAGE_SIZE)
                     .setInitialLoadSizeHint(LOCAL_PAGE_SIZE).setPrefetchDistance(REMOTE_PAGE_SIZE).build()
             val builder = LivePagedListBuilder(
-                    db.message().pagedFolder(folder, folderType, "time", true, false), config)
-            builder.setBoundaryCallback(searchCallback)
+                    db.message().pagedSearch(SearchIndex.getSearchQuery(folder, search!!)), config)
+            if (server) {
+                builder.setBoundaryCallback(searchCallback)
+            }
             messages = builder.build()
         }
 
@@ -0,0 +1,362 @@
+package org.dystopia.email;
+
+/*
+    This file is part of SimpleEmail.
+    Copyright 2018-2020, Distopico (dystopia project) <distopico@riseup.net> and contributors
+
+    This program  is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program  is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import android.util.Log;
+
+import com.sun.mail.iap.Argument;
+import com.sun.mail.iap.ByteArray;
+import com.sun.mail.iap.ParsingException;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.iap.ResponseHandler;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPMessage;
+import com.sun.mail.imap.protocol.BASE64MailboxEncoder;
+import com.sun.mail.imap.protocol.BODY;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.IMAPResponse;
+import com.sun.mail.imap.protocol.Status;
+import com.sun.mail.imap.protocol.UIDSet;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.mail.MessageRemovedException;
+import javax.mail.MessagingException;
+
+/**
+ * IMAP commands not offered by JavaMail, executed on the connection of an open folder.
+ */
+public class ImapHelper {
+    private static final int UID_BATCH_SIZE = 500;
+
+    // https://tools.ietf.org/html/rfc5465
+    static void notify(IMAPFolder ifolder, final List<String> mailboxes, final ResponseHandler handler)
+        throws MessagingException {
+        final Argument args = new Argument();
+        args.writeAtom("SET");
+
+        Argument selected = new Argument();
+        selected.writeAtom("SELECTED");
+        selected.writeArgument(new Argument()
+            .writeAtom("MessageNew")
+            .writeAtom("MessageExpunge")
+            .writeAtom("FlagChange"));
+        args.writeArgument(selected);
+
+        if (mailboxes.size() > 0) {
+            Argument names = new Argument();
+            for (String mailbox : mailboxes) {
+                names.writeString(BASE64MailboxEncoder.encode(mailbox));
+            }
+
+            // Other mailboxes are reported with untagged STATUS responses
+            Argument others = new Argument();
+            others.writeAtom("MAILBOXES");
+            others.writeArgument(names);
+            others.writeArgument(new Argument()
+                .writeAtom("MessageNew")
+                .writeAtom("MessageExpunge"));
+            args.writeArgument(others);
+        }
+
+        ifolder.doCommand(new IMAPFolder.ProtocolCommand() {
+            @Override
+            public Object doCommand(IMAPProtocol p) throws ProtocolException {
+                // The handler stays registered and sees responses read while idling,
+                // until notifyNone, because the connection returns to the pool of the store
+                p.addResponseHandler(handler);
+                Response[] responses = p.command("NOTIFY", args);
+                p.notifyResponseHandlers(responses);
+                Response response = responses[responses.length - 1];
+                if (!response.isOK()) {
+                    p.removeResponseHandler(handler);
+                }
+                p.handleResult(response);
+                return null;
+            }
+        });
+    }
+
+    // Stops the events of notify and removes its handler before the connection is reused
+    static void notifyNone(IMAPFolder ifolder, final ResponseHandler handler) throws MessagingException {
+        ifolder.doCommand(new IMAPFolder.ProtocolCommand() {
+            @Override
+            public Object doCommand(IMAPProtocol p) throws ProtocolException {
+                try {
+                    Argument args = new Argument();
+                    args.writeAtom("NONE");
+                    Response[] responses = p.command("NOTIFY", args);
+                    p.handleResult(responses[responses.length - 1]);
+                } finally {
+                    p.removeResponseHandler(handler);
+                }
+                return null;
+            }
+        });
+    }
+
+    // Sets or clears a system flag, like \Seen, of all messages with one command
+    static void storeFlag(IMAPFolder ifolder, long[] uids, String flag, boolean value)
+        throws MessagingException {
+        for (String set : getUidSets(uids)) {
+            execute(ifolder, "UID STORE " + set
+                + (value ? " +FLAGS.SILENT (" : " -FLAGS.SILENT (") + flag + ")", null);
+        }
+    }
+
+    // https://tools.ietf.org/html/rfc6851
+    static void move(IMAPFolder ifolder, long[] uids, String target) throws MessagingException {
+        for (String set : getUidSets(uids)) {
+            Argument args = new Argument();
+            args.writeAtom(set);
+            args.writeString(BASE64MailboxEncoder.encode(target));
+            execute(ifolder, "UID MOVE", args);
+        }
+    }
+
+    // https://tools.ietf.org/html/rfc4315, removes only the given messages marked \Deleted
+    static void expunge(IMAPFolder ifolder, long[] uids) throws MessagingException {
+        for (String set : getUidSets(uids)) {
+            execute(ifolder, "UID EXPUNGE " + set, null);
+        }
+    }
+
+    // https://tools.ietf.org/html/rfc3501#section-6.4.5 BODY.PEEK[section]<start.size>
+    static byte[] peekBody(IMAPMessage imessage, final String section, final long start, final int size)
+        throws MessagingException {
+        IMAPFolder ifolder = (IMAPFolder) imessage.getFolder();
+        final int msgno = imessage.getMessageNumber();
+        BODY body = (BODY) ifolder.doCommand(new IMAPFolder.ProtocolCommand() {
+            @Override
+            public Object doCommand(IMAPProtocol p) throws ProtocolException {
+                return p.peekBody(msgno, section, (int) start, size);
+            }
+        });
+
+        if (body == null) {
+            throw new MessageRemovedException();
+        }
+        ByteArray data = body.getByteArray();
+        return (data == null ? new byte[0] : data.getNewBytes());
+    }
+
+    // Ordered UIDs of all messages or of the messages matching a text, without creating
+    // message objects: https://tools.ietf.org/html/rfc5256 SORT if supported,
+    // else https://tools.ietf.org/html/rfc4731 ESEARCH, which returns UID ranges
+    static UidList search(IMAPFolder ifolder, String text, final boolean sort, final boolean esearch)
+        throws MessagingException {
+        final Argument args = new Argument();
+        final String command;
+        if (sort) {
+            command = "UID SORT";
+            args.writeArgument(new Argument().writeAtom("REVERSE").writeAtom("ARRIVAL"));
+            args.writeAtom("UTF-8");
+        } else {
+            command = "UID SEARCH";
+            if (esearch) {
+                args.writeAtom("RETURN");
+                args.writeArgument(new Argument().writeAtom("ALL"));
+            }
+            if (text != null) {
+                args.writeAtom("CHARSET");
+                args.writeAtom("UTF-8");
+            }
+        }
+
+        if (text == null) {
+            args.writeAtom("ALL");
+        } else {
+            try {
+                args.writeAtom("OR");
+                args.writeAtom("OR");
+                args.writeAtom("FROM");
+                args.writeString(text, "UTF-8");
+                args.writeAtom("TO");
+                args.writeString(text, "UTF-8");
+                args.writeAtom("OR");
+                args.writeAtom("SUBJECT");
+                args.writeString(text, "UTF-8");
+                args.writeAtom("BODY");
+                args.writeString(text, "UTF-8");
+            } catch (UnsupportedEncodingException ex) {
+                throw new MessagingException(ex.getMessage(), ex);
+            }
+        }
+
+        return (UidList) ifolder.doCommand(new IMAPFolder.ProtocolCommand() {
+            @Override
+            public Object doCommand(IMAPProtocol p) throws ProtocolException {
+                Response[] responses = p.command(command, args);
+                Response response = responses[responses.length - 1];
+                p.handleResult(response);
+
+                UidList result = null;
+                List<Long> uids = new ArrayList<>();
+                for (int i = 0; i < responses.length - 1; i++) {
+                    if (!(responses[i] instanceof IMAPResponse)) {
+                        continue;
+                    }
+                    IMAPResponse r = (IMAPResponse) responses[i];
+                    if (r.keyEquals("SORT") || r.keyEquals("SEARCH")) {
+                        long uid;
+                        while ((uid = r.readLong()) != -1) {
+                            uids.add(uid);
+                        }
+                        responses[i] = null;
+                    } else if (r.keyEquals("ESEARCH")) {
+                        result = parseEsearch(r.getRest());
+                        responses[i] = null;
+                    }
+                }
+                p.notifyResponseHandlers(responses);
+
+                if (result != null) {
+                    return result;
+                }
+
+                long[] list = new long[uids.size()];
+                for (int i = 0; i < list.length; i++) {
+                    // SEARCH returns ascending UIDs, newer messages have higher UIDs
+                    list[i] = uids.get(sort ? i : list.length - 1 - i);
+                }
+                return new UidList(list, null);
+            }
+        });
+    }
+
+    // (TAG "A1") UID ALL 1:3,7,9 or no ALL if nothing matched
+    static UidList parseEsearch(String rest) {
+        String[] tokens = rest.replaceFirst("^\\s*\\(TAG \"[^\"]*\"\\)", "").trim().split("\\s+");
+        UIDSet[] sets = new UIDSet[0];
+        for (int i = 0; i < tokens.length - 1; i++) {
+            if ("ALL".equalsIgnoreCase(tokens[i])) {
+                sets = UIDSet.parseUIDSets(tokens[i + 1]);
+            }
+        }
+
+        // The ranges are not necessarily ordered, nor ascending
+        for (UIDSet set : sets) {
+            if (set.start > set.end) {
+                long start = set.start;
+                set.start = set.end;
+                set.end = start;
+            }
+        }
+        Arrays.sort(sets, new Comparator<UIDSet>() {
+            @Override
+            public int compare(UIDSet s1, UIDSet s2) {
+                return Long.compare(s1.start, s2.start);
+            }
+        });
+
+        return new UidList(null, sets);
+    }
+
+    // Hands out the UIDs of a search page by page, newest first
+    static class UidList {
+        private final long[] uids;
+        private final UIDSet[] sets; // ascending ranges
+        private int index; // next UID or range
+        private long next; // next UID within the range
+
+        UidList(long[] uids, UIDSet[] sets) {
+            this.uids = uids;
+            this.sets = sets;
+            if (sets == null) {
+                index = 0;
+            } else {
+                index = sets.length - 1;
+                next = (index < 0 ? 0 : sets[index].end);
+            }
+        }
+
+        long size() {
+            return (sets == null ? uids.length : UIDSet.size(sets));
+        }
+
+        long[] next(int count) {
+            List<Long> page = new ArrayList<>();
+            if (sets == null) {
+                while (index < uids.length && page.size() < count) {
+                    page.add(uids[index++]);
+                }
+            } else {
+                while (index >= 0 && page.size() < count) {
+                    page.add(next);
+                    if (next > sets[index].start) {
+                        next--;
+                    } else if (--index >= 0) {
+                        next = sets[index].end;
+                    }
+                }
+            }
+
+            long[] result = new long[page.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = page.get(i);
+            }
+            return result;
+        }
+    }
+
+    // Keep command lines short for servers limiting their length
+    private static List<String> getUidSets(long[] uids) {
+        long[] sorted = uids.clone();
+        Arrays.sort(sorted);
+
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < sorted.length; i += UID_BATCH_SIZE) {
+            long[] chunk = Arrays.copyOfRange(sorted, i, Math.min(sorted.length, i + UID_BATCH_SIZE));
+            result.add(UIDSet.toString(UIDSet.createUIDSets(chunk)));
+        }
+        return result;
+    }
+
+    private static void execute(IMAPFolder ifolder, final String command, final Argument args)
+        throws MessagingException {
+        ifolder.doCommand(new IMAPFolder.ProtocolCommand() {
+            @Override
+            public Object doCommand(IMAPProtocol p) throws ProtocolException {
+                // Untagged EXPUNGE and FETCH responses update the folder and its listeners
+                Response[] responses = p.command(command, args);
+                p.notifyResponseHandlers(responses);
+                p.handleResult(responses[responses.length - 1]);
+                return null;
+            }
+        });
+    }
+
+    static String getStatusMailbox(Response r) {
+        if (!(r instanceof IMAPResponse) || !((IMAPResponse) r).keyEquals("STATUS")) {
+            return null;
+        }
+
+        try {
+            // Parse a copy to leave the response intact for other handlers
+            return new Status(new IMAPResponse((IMAPResponse) r)).mbox;
+        } catch (ParsingException ex) {
+            return null;
+        }
+    }
+}
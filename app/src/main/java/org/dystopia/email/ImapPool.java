@@ -0,0 +1,236 @@
+package org.dystopia.email;
+
+/*
+    This file is part of SimpleEmail.
+    Copyright 2018-2020, Distopico (dystopia project) <distopico@riseup.net> and contributors
+
+    This program  is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program  is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.sun.mail.imap.IMAPStore;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+
+/**
+ * One authenticated IMAP store per account, shared by synchronization and remote browsing.
+ * Folders opened on a leased store reuse the idle connections kept by the store itself,
+ * so opening a folder does not need a new handshake and login.
+ * A store nobody leases is closed after a while.
+ */
+public class ImapPool {
+    private final Map<Long, Lease> stores = new HashMap<>(); // account id: store
+
+    private final ScheduledExecutorService evictor =
+        Executors.newSingleThreadScheduledExecutor(Helper.backgroundThreadFactory);
+
+    private static final int CONNECTION_POOL_SIZE = 3; // idle folder connections per store
+    private static final long IDLE_TIMEOUT = 5 * 60 * 1000L; // milliseconds
+
+    private static ImapPool instance = null;
+
+    static class Lease {
+        final long account;
+        final Session session;
+        final IMAPStore store;
+
+        private final String key;
+        private String password;
+        private boolean reauth = false; // password changed while connected
+        private int leases = 0;
+        private long released = 0;
+        private final Map<String, Boolean> capabilities = new HashMap<>();
+
+        private Lease(long account, String key, Session session, IMAPStore store) {
+            this.account = account;
+            this.key = key;
+            this.session = session;
+            this.store = store;
+        }
+
+        // Capabilities do not change while connected
+        boolean hasCapability(String capability) throws MessagingException {
+            synchronized (capabilities) {
+                Boolean has = capabilities.get(capability);
+                if (has == null) {
+                    has = store.hasCapability(capability);
+                    capabilities.put(capability, has);
+                }
+                return has;
+            }
+        }
+    }
+
+    static synchronized ImapPool getInstance() {
+        if (instance == null) {
+            instance = new ImapPool();
+        }
+        return instance;
+    }
+
+    Lease lease(Context context, EntityAccount account) throws MessagingException {
+        String key = getKey(account);
+
+        Lease lease;
+        Lease stale = null;
+        boolean reauth;
+        synchronized (this) {
+            lease = stores.get(account.id);
+            if (lease != null && !lease.key.equals(key)) {
+                stale = stores.remove(account.id);
+                lease = null;
+            }
+            if (lease == null) {
+                Session isession = Session.getInstance(getProperties(account), null);
+                isession.setDebug(isDebug(context));
+                IMAPStore istore = (IMAPStore) isession.getStore(account.starttls ? "imap" : "imaps");
+                lease = new Lease(account.id, key, isession, istore);
+                lease.password = account.password;
+                stores.put(account.id, lease);
+            }
+            lease.leases++;
+
+            // A refreshed OAuth token should not close a store others are using
+            if (!account.password.equals(lease.password)) {
+                lease.password = account.password;
+                lease.reauth = true;
+            }
+            reauth = (lease.reauth && lease.leases == 1);
+            if (reauth) {
+                lease.reauth = false;
+            }
+        }
+
+        // Changed settings require a new connection
+        if (stale != null) {
+            close(stale);
+        }
+
+        try {
+            synchronized (lease) {
+                if (reauth && lease.store.isConnected()) {
+                    Log.i(Helper.TAG, account.name + " reauthenticating store");
+                    lease.store.close();
+                }
+
+                // Sends NOOP to check if the server did not drop the connection
+                if (lease.store.isConnected()) {
+                    Log.i(Helper.TAG, account.name + " reusing store leases=" + lease.leases);
+                } else {
+                    Log.i(Helper.TAG, account.name + " connecting store");
+                    synchronized (lease.capabilities) {
+                        lease.capabilities.clear();
+                    }
+                    Helper.connect(context, lease.store, account);
+                    synchronized (this) {
+                        lease.reauth = false;
+                    }
+                }
+            }
+        } catch (MessagingException ex) {
+            release(lease, false);
+            throw ex;
+        }
+
+        return lease;
+    }
+
+    // A broken store is closed right away, including the folders others opened on it.
+    // A store still authenticated with an old password is closed when nobody uses it anymore.
+    void release(Lease lease, boolean broken) {
+        synchronized (this) {
+            lease.leases--;
+            lease.released = System.currentTimeMillis();
+            if (lease.reauth && lease.leases == 0) {
+                broken = true;
+            }
+            if (broken && stores.get(lease.account) == lease) {
+                stores.remove(lease.account);
+            }
+        }
+
+        if (broken) {
+            close(lease);
+        }
+
+        // A store replacing a broken one might become idle too
+        evictor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                evict();
+            }
+        }, IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    private void evict() {
+        List<Lease> expired = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Iterator<Lease> it = stores.values().iterator();
+            while (it.hasNext()) {
+                Lease lease = it.next();
+                if (lease.leases == 0 && lease.released + IDLE_TIMEOUT <= now) {
+                    expired.add(lease);
+                    it.remove();
+                }
+            }
+        }
+        for (Lease lease : expired) {
+            Log.i(Helper.TAG, "Evicting store account=" + lease.account);
+            close(lease);
+        }
+    }
+
+    private static void close(Lease lease) {
+        try {
+            lease.store.close();
+        } catch (MessagingException ex) {
+            Log.w(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
+        }
+    }
+
+    private static Properties getProperties(EntityAccount account) {
+        Properties props = MessageHelper.getSessionProperties(account.auth_type, account.insecure);
+        props.put("mail.imaps.connectionpoolsize", Integer.toString(CONNECTION_POOL_SIZE));
+        props.put("mail.imap.connectionpoolsize", Integer.toString(CONNECTION_POOL_SIZE));
+        props.setProperty("mail.imap.throwsearchexception", "true");
+        return props;
+    }
+
+    private static boolean isDebug(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        return (prefs.getBoolean("debug", false) || BuildConfig.DEBUG);
+    }
+
+    // The password is not part of the key, since OAuth tokens are refreshed regularly
+    private static String getKey(EntityAccount account) {
+        return account.host + ":" + account.port + ":" + account.starttls + ":" + account.insecure
+            + ":" + account.auth_type + ":" + account.user;
+    }
+}
@@ -26,16 +26,23 @@ import android.util.Base64;
 import android.util.Log;
 import android.webkit.MimeTypeMap;
 
+import com.sun.mail.imap.IMAPBodyPart;
+
 import org.jsoup.Jsoup;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Date;
@@ -61,6 +68,7 @@ import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimeUtility;
 import javax.mail.internet.ParseException;
 
 public class MessageHelper {
@@ -597,6 +605,130 @@ public class MessageHelper {
         return null;
     }
 
+    // Only the selected text part is fetched and it is decoded while writing,
+    // so memory use does not depend on the size of the message or its attachments
+    void writeHtml(File file) throws MessagingException, IOException {
+        Writer out = new BufferedWriter(new FileWriter(file));
+        try {
+            Part part;
+            try {
+                part = getTextPart(imessage);
+            } catch (ParseException ex) {
+                Log.w(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
+                out.write(ex.toString());
+                return;
+            }
+            if (part != null) {
+                writeHtml(part, out);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    // Same selection as getHtml
+    private static Part getTextPart(Part part) throws MessagingException, IOException {
+        if (part.isMimeType("text/*")) {
+            return part;
+        }
+
+        if (part.isMimeType("multipart/alternative")) {
+            Part text = null;
+            Multipart mp = (Multipart) part.getContent();
+            for (int i = 0; i < mp.getCount(); i++) {
+                Part bp = mp.getBodyPart(i);
+                if (bp.isMimeType("text/plain")) {
+                    if (text == null) {
+                        text = bp;
+                    }
+                } else if (bp.isMimeType("text/html")) {
+                    return bp;
+                } else {
+                    return getTextPart(bp);
+                }
+            }
+            return text;
+        }
+
+        if (part.isMimeType("multipart/*")) {
+            Multipart mp = (Multipart) part.getContent();
+            for (int i = 0; i < mp.getCount(); i++) {
+                Part bp = getTextPart(mp.getBodyPart(i));
+                if (bp != null) {
+                    return bp;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private static void writeHtml(Part part, Writer out) throws MessagingException, IOException {
+        Charset charset;
+        try {
+            String name = new ContentType(part.getContentType()).getParameter("charset");
+            charset = Charset.forName(MimeUtility.javaCharset(name == null ? "us-ascii" : name));
+        } catch (ParseException ex) {
+            Log.w(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
+            charset = Charset.forName("US-ASCII");
+        } catch (IllegalArgumentException ex) {
+            // x-binaryenc
+            Log.w(Helper.TAG, "Unsupported encoding: " + part.getContentType());
+            charset = Charset.forName("US-ASCII");
+        }
+
+        InputStream is;
+        try {
+            // For IMAP parts only this section is fetched, in blocks of the fetch size
+            is = part.getInputStream();
+        } catch (MessagingException ex) {
+            // Unknown encoding: none
+            Log.w(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
+            out.write(ex.toString());
+            return;
+        }
+
+        boolean plain = part.isMimeType("text/plain");
+        Reader in = new InputStreamReader(is, charset);
+        try {
+            if (plain) {
+                out.write("<pre>");
+            }
+
+            boolean cr = false;
+            char[] buffer = new char[4096];
+            for (int len = in.read(buffer); len != -1; len = in.read(buffer)) {
+                if (!plain) {
+                    out.write(buffer, 0, len);
+                    continue;
+                }
+
+                // Line breaks to <br />, like getHtml
+                for (int i = 0; i < len; i++) {
+                    char c = buffer[i];
+                    if (cr && c != '\n') {
+                        out.write('\r');
+                    }
+                    cr = (c == '\r');
+                    if (c == '\n') {
+                        out.write("<br />");
+                    } else if (!cr) {
+                        out.write(c);
+                    }
+                }
+            }
+
+            if (plain) {
+                if (cr) {
+                    out.write('\r');
+                }
+                out.write("</pre>");
+            }
+        } finally {
+            in.close();
+        }
+    }
+
     public List<EntityAttachment> getAttachments() throws IOException, MessagingException {
         List<EntityAttachment> result = new ArrayList<>();
 
@@ -609,7 +741,7 @@ public class MessageHelper {
             if (content instanceof Multipart) {
                 Multipart multipart = (Multipart) content;
                 for (int i = 0; i < multipart.getCount(); i++) {
-                    result.addAll(getAttachments(multipart.getBodyPart(i)));
+                    result.addAll(getAttachments(multipart.getBodyPart(i), Integer.toString(i + 1)));
                 }
             }
         } catch (ParseException ex) {
@@ -619,7 +751,8 @@ public class MessageHelper {
         return result;
     }
 
-    private static List<EntityAttachment> getAttachments(BodyPart part)
+    // https://tools.ietf.org/html/rfc3501#section-6.4.5 section numbering
+    private static List<EntityAttachment> getAttachments(BodyPart part, String section)
         throws IOException, MessagingException {
         List<EntityAttachment> result = new ArrayList<>();
 
@@ -663,6 +796,10 @@ public class MessageHelper {
                 attachment.size = part.getSize();
                 attachment.cid = (cid == null || cid.length == 0 ? null : cid[0]);
                 attachment.part = part;
+                if (part instanceof IMAPBodyPart) {
+                    attachment.section = section;
+                    attachment.encoding = ((IMAPBodyPart) part).getEncoding();
+                }
 
                 // Try to guess a better content type
                 // Sometimes PDF files are sent using the wrong type
@@ -688,7 +825,7 @@ public class MessageHelper {
         } else if (content instanceof Multipart) {
             Multipart multipart = (Multipart) content;
             for (int i = 0; i < multipart.getCount(); i++) {
-                result.addAll(getAttachments(multipart.getBodyPart(i)));
+                result.addAll(getAttachments(multipart.getBodyPart(i), section + "." + (i + 1)));
             }
         }
 
@@ -0,0 +1,118 @@
+package org.dystopia.email;
+
+/*
+    This file is part of SimpleEmail.
+    Copyright 2018-2020, Distopico (dystopia project) <distopico@riseup.net> and contributors
+
+    This program  is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program  is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bloom filter of the Message-IDs stored per account, to skip the database lookup
+ * of synchronized messages which are definitely new.
+ * Only messages synchronized from the server are added; Message-IDs generated
+ * by this app (drafts, outbox) are always looked up in the database.
+ * Deleted messages stay in the filter, which only causes an unnecessary lookup.
+ */
+public class MessageIdFilter {
+    private final BitSet bits;
+    private final int size; // bits
+    private final int capacity; // Message-IDs
+    private int count = 0;
+
+    private static final int MIN_CAPACITY = 10000; // Message-IDs
+    private static final int BITS_PER_ID = 10; // about 1% false positives
+    private static final int HASHES = 7;
+
+    private static final Map<Long, MessageIdFilter> filters = new HashMap<>(); // account id: filter
+
+    MessageIdFilter(int capacity) {
+        this.capacity = capacity;
+        this.size = capacity * BITS_PER_ID;
+        this.bits = new BitSet(size);
+    }
+
+    // Builds the filter from the database on first use, preferably outside a transaction
+    static MessageIdFilter getInstance(Context context, long account) {
+        synchronized (filters) {
+            MessageIdFilter filter = filters.get(account);
+            if (filter == null) {
+                long start = System.currentTimeMillis();
+                List<String> msgids = DB.getInstance(context).message().getMsgIds(account);
+                // Room for new messages without becoming saturated
+                filter = new MessageIdFilter(Math.max(MIN_CAPACITY, msgids.size() * 2));
+                for (String msgid : msgids) {
+                    filter.add(msgid);
+                }
+                filters.put(account, filter);
+                Log.i(Helper.TAG, "Message-ID filter account=" + account + " size=" + msgids.size()
+                    + " " + (System.currentTimeMillis() - start) + " ms");
+            }
+            return filter;
+        }
+    }
+
+    synchronized void add(String msgid) {
+        if (msgid == null) {
+            return;
+        }
+        count++;
+        int h1 = msgid.hashCode();
+        int h2 = hash(msgid);
+        for (int i = 0; i < HASHES; i++) {
+            bits.set(index(h1, h2, i));
+        }
+    }
+
+    // False means the Message-ID is definitely not in the database
+    synchronized boolean mightContain(String msgid) {
+        if (msgid == null) {
+            return false;
+        }
+        if (msgid.contains(BuildConfig.APPLICATION_ID) || count > capacity) {
+            return true;
+        }
+        int h1 = msgid.hashCode();
+        int h2 = hash(msgid);
+        for (int i = 0; i < HASHES; i++) {
+            if (!bits.get(index(h1, h2, i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int index(int h1, int h2, int i) {
+        return ((h1 + i * h2) & Integer.MAX_VALUE) % size;
+    }
+
+    // FNV-1a, independent of String.hashCode
+    private static int hash(String value) {
+        int h = 0x811c9dc5;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x01000193;
+        }
+        return h | 1;
+    }
+}
@@ -0,0 +1,143 @@
+package org.dystopia.email;
+
+/*
+    This file is part of SimpleEmail.
+    Copyright 2018-2020, Distopico (dystopia project) <distopico@riseup.net> and contributors
+
+    This program  is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program  is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.MessagingException;
+
+/**
+ * Incremental threading in the spirit of JWZ's algorithm
+ * (https://www.jwz.org/doc/threading.html): every Message-ID of a message and of its
+ * References and In-Reply-To headers is a container which belongs to one thread.
+ * A message joins the thread of any of its containers; a message linking
+ * containers of different threads merges these threads.
+ * Unlike JWZ, messages are not grouped by subject.
+ */
+public class MessageThreader {
+    // Must be called within a database transaction
+    static String getThread(final DB db, long account, MessageHelper helper, long uid)
+        throws MessagingException {
+        List<String> msgids = getMsgIds(helper.getReferences(), helper.getInReplyTo(), helper.getMessageID());
+        if (msgids.isEmpty()) {
+            return helper.getThreadId(uid);
+        }
+
+        return getThread(new Store() {
+            @Override
+            public List<EntityReference> getReferences(long account, List<String> msgids) {
+                return db.thread().getReferences(account, msgids);
+            }
+
+            @Override
+            public void insertReference(EntityReference reference) {
+                db.thread().insertReference(reference);
+            }
+
+            @Override
+            public void merge(long account, String from, String to) {
+                int messages = db.message().mergeThread(account, from, to);
+                db.thread().mergeReferences(account, from, to);
+                Log.i(Helper.TAG, "Merged thread " + from + " into " + to + " messages=" + messages);
+            }
+        }, account, msgids, helper.getThreadId(uid));
+    }
+
+    // Root first, message itself last
+    static List<String> getMsgIds(String[] references, String inreplyto, String msgid) {
+        List<String> msgids = new ArrayList<>();
+        for (String ref : references) {
+            add(msgids, ref);
+        }
+        if (inreplyto != null) {
+            for (String ref : inreplyto.split("\\s+")) {
+                if (ref.startsWith("<")) {
+                    add(msgids, ref);
+                }
+            }
+        }
+        add(msgids, msgid);
+        return msgids;
+    }
+
+    static String getThread(Store store, long account, List<String> msgids, String fallback) {
+        Map<String, String> known = new HashMap<>(); // msgid: thread
+        for (EntityReference reference : store.getReferences(account, msgids)) {
+            known.put(reference.msgid, reference.thread);
+        }
+
+        // The thread nearest to the root wins
+        String thread = null;
+        List<String> merge = new ArrayList<>();
+        for (String msgid : msgids) {
+            String other = known.get(msgid);
+            if (other == null) {
+                continue;
+            }
+            if (thread == null) {
+                thread = other;
+            } else if (!thread.equals(other) && !merge.contains(other)) {
+                merge.add(other);
+            }
+        }
+
+        if (thread == null) {
+            thread = fallback;
+        }
+
+        for (String other : merge) {
+            store.merge(account, other, thread);
+        }
+
+        for (String msgid : msgids) {
+            if (!thread.equals(known.get(msgid)) && !merge.contains(known.get(msgid))) {
+                EntityReference reference = new EntityReference();
+                reference.account = account;
+                reference.msgid = msgid;
+                reference.thread = thread;
+                store.insertReference(reference);
+            }
+        }
+
+        return thread;
+    }
+
+    // No android.text.TextUtils, to keep the threading testable on the JVM
+    private static void add(List<String> msgids, String msgid) {
+        if (msgid != null && !msgid.isEmpty() && !msgids.contains(msgid)) {
+            msgids.add(msgid);
+        }
+    }
+
+    // The thread and reference tables, separate from Room for testing
+    interface Store {
+        List<EntityReference> getReferences(long account, List<String> msgids);
+
+        void insertReference(EntityReference reference);
+
+        // Moves the messages and references of thread from to thread to
+        void merge(long account, String from, String to);
+    }
+}
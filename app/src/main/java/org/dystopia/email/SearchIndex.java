@@ -0,0 +1,201 @@
+package org.dystopia.email;
+
+/*
+    This file is part of SimpleEmail.
+    Copyright 2018-2020, Distopico (dystopia project) <distopico@riseup.net> and contributors
+
+    This program  is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program  is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+
+import androidx.sqlite.db.SimpleSQLiteQuery;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteQuery;
+
+import org.jsoup.Jsoup;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Local full text search over the subject, the from/to addresses and the downloaded
+ * body text of messages, using an SQLite FTS4 table with the message id as docid.
+ * Subject and addresses are indexed by database triggers, see {@link #createIndex},
+ * body text is indexed when a body is downloaded. A NULL text means not indexed yet.
+ */
+public class SearchIndex {
+    private static final int MAX_TEXT_LENGTH = 64 * 1024; // characters of HTML
+
+    private static ExecutorService executor =
+        Executors.newSingleThreadExecutor(Helper.backgroundThreadFactory);
+
+    // Address columns contain JSON, the keys are left out
+    private static String getAddresses(String row) {
+        return "REPLACE(REPLACE(IFNULL(" + row + ".`from`, '') || ' ' || IFNULL(" + row + ".`to`, '')" +
+            ", '\"address\":', ''), '\"personal\":', '')";
+    }
+
+    // unicode61 folds case and diacritics beyond ASCII,
+    // but it is not compiled into the SQLite of every Android 5 device
+    private static String getTokenizer(SupportSQLiteDatabase db) {
+        try {
+            db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS temp.`message_fts_probe`" +
+                " USING fts4(tokenize=unicode61)");
+            db.execSQL("DROP TABLE temp.`message_fts_probe`");
+            return "unicode61";
+        } catch (SQLiteException ex) {
+            Log.w(Helper.TAG, "Search index tokenizer " + ex);
+            return "simple";
+        }
+    }
+
+    static void createIndex(SupportSQLiteDatabase db) {
+        db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS `message_fts`" +
+            " USING fts4(`subject`, `address`, `text`, tokenize=" + getTokenizer(db) + ")");
+        // Search results are copies of messages which are already indexed or come from the server
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS `message_fts_insert` AFTER INSERT ON `message`" +
+            " WHEN NOT NEW.`ui_found`" +
+            " BEGIN INSERT INTO `message_fts` (`docid`, `subject`, `address`)" +
+            " VALUES (NEW.`id`, NEW.`subject`, " + getAddresses("NEW") + "); END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS `message_fts_update` AFTER UPDATE ON `message`" +
+            " WHEN NOT NEW.`ui_found`" +
+            " AND (OLD.`subject` IS NOT NEW.`subject` OR OLD.`from` IS NOT NEW.`from` OR OLD.`to` IS NOT NEW.`to`)" +
+            " BEGIN UPDATE `message_fts` SET `subject` = NEW.`subject`, `address` = " + getAddresses("NEW") +
+            " WHERE `docid` = NEW.`id`; END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS `message_fts_delete` AFTER DELETE ON `message`" +
+            " BEGIN DELETE FROM `message_fts` WHERE `docid` = OLD.`id`; END");
+    }
+
+    // Subject and addresses of existing messages, bodies are indexed by backfill
+    static void populateIndex(SupportSQLiteDatabase db) {
+        db.execSQL("INSERT INTO `message_fts` (`docid`, `subject`, `address`)" +
+            " SELECT `id`, `subject`, " + getAddresses("message") + " FROM `message`" +
+            " WHERE NOT `ui_found`");
+    }
+
+    static void setText(DB db, long id, File file) {
+        String text;
+        try {
+            text = Jsoup.parse(read(file)).text();
+        } catch (IOException ex) {
+            Log.w(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
+            return;
+        }
+        db.getOpenHelper().getWritableDatabase().execSQL(
+            "UPDATE `message_fts` SET `text` = ? WHERE `docid` = ?", new Object[] {text, id});
+    }
+
+    // Indexes bodies downloaded before the index existed
+    static void backfill(final Context context) {
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                DB db = DB.getInstance(context);
+                List<Long> ids = new ArrayList<>();
+                Cursor cursor = null;
+                try {
+                    cursor = db.query("SELECT `message`.`id` FROM `message`" +
+                        " JOIN `message_fts` ON `message_fts`.`docid` = `message`.`id`" +
+                        " WHERE `message`.`content` AND `message_fts`.`text` IS NULL", new Object[0]);
+                    while (cursor.moveToNext()) {
+                        ids.add(cursor.getLong(0));
+                    }
+                } catch (Throwable ex) {
+                    Log.e(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
+                } finally {
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                }
+
+                Log.i(Helper.TAG, "Search index backfill messages=" + ids.size());
+                for (long id : ids) {
+                    setText(db, id, EntityMessage.getFile(context, id));
+                }
+            }
+        });
+    }
+
+    // Local matches in the folder, followed by server results for messages not stored locally
+    static SupportSQLiteQuery getSearchQuery(long folder, String search) {
+        return new SimpleSQLiteQuery(
+            "SELECT message.*"
+                + ", account.name AS accountName, account.color AS accountColor"
+                + ", folder.name AS folderName, folder.display AS folderDisplay, folder.type AS folderType"
+                + ", 1 AS count"
+                + ", CASE WHEN message.ui_seen THEN 0 ELSE 1 END AS unseen"
+                + ", CASE WHEN message.ui_flagged THEN 0 ELSE 1 END AS unflagged"
+                + ", (SELECT COUNT(a.id) FROM attachment a WHERE a.message = message.id) AS attachments"
+                + " FROM message"
+                + " JOIN account ON account.id = message.account"
+                + " JOIN folder ON folder.id = message.folder"
+                + " WHERE message.folder = ?"
+                + " AND NOT message.ui_hide"
+                + " AND CASE WHEN message.ui_found"
+                + "  THEN NOT EXISTS (SELECT local.id FROM message local"
+                + "   WHERE local.folder = message.folder AND local.uid = message.uid AND NOT local.ui_found)"
+                + "  ELSE message.id IN (SELECT docid FROM message_fts WHERE message_fts MATCH ?)"
+                + " END"
+                + " ORDER BY message.ui_found, message.received DESC, message.sent DESC",
+            new Object[] {folder, getMatch(search)});
+    }
+
+    // Each word is a prefix phrase, so FTS syntax in the search text cannot cause errors
+    static String getMatch(String search) {
+        StringBuilder sb = new StringBuilder();
+        for (String word : search.trim().split("\\s+")) {
+            word = word.replace("\"", "");
+            if (word.length() > 0) {
+                if (sb.length() > 0) {
+                    sb.append(' ');
+                }
+                sb.append('"').append(word).append("*\"");
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String read(File file) throws IOException {
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new FileReader(file));
+            char[] buffer = new char[MAX_TEXT_LENGTH];
+            int length = 0;
+            int read;
+            while (length < buffer.length && (read = in.read(buffer, length, buffer.length - length)) != -1) {
+                length += read;
+            }
+            return new String(buffer, 0, length);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ex) {
+                    Log.e(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
+                }
+            }
+        }
+    }
+}
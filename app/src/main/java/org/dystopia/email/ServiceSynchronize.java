@@ -20,20 +20,16 @@ package org.dystopia.email;
 
 import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
 
-import android.Manifest;
 import android.app.AlarmManager;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
-import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
-import android.content.pm.PackageManager;
-import android.database.Cursor;
 import android.media.RingtoneManager;
 import android.net.ConnectivityManager;
 import android.net.Network;
@@ -60,10 +56,14 @@ import androidx.lifecycle.Observer;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import com.sun.mail.iap.ConnectionException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.iap.ResponseHandler;
 import com.sun.mail.imap.AppendUID;
 import com.sun.mail.imap.IMAPFolder;
 import com.sun.mail.imap.IMAPMessage;
 import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.MessageVanishedEvent;
+import com.sun.mail.imap.ResyncData;
 import com.sun.mail.util.FolderClosedIOException;
 import com.sun.mail.util.MailConnectException;
 
@@ -76,15 +76,26 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import javax.mail.Address;
 import javax.mail.AuthenticationFailedException;
@@ -105,8 +116,11 @@ import javax.mail.Transport;
 import javax.mail.UIDFolder;
 import javax.mail.event.ConnectionAdapter;
 import javax.mail.event.ConnectionEvent;
+import javax.mail.event.ConnectionListener;
 import javax.mail.event.FolderAdapter;
 import javax.mail.event.FolderEvent;
+import javax.mail.event.FolderListener;
+import javax.mail.event.MailEvent;
 import javax.mail.event.MessageChangedEvent;
 import javax.mail.event.MessageChangedListener;
 import javax.mail.event.MessageCountAdapter;
@@ -124,7 +138,18 @@ import org.json.JSONArray;
 import org.json.JSONException;
 
 public class ServiceSynchronize extends LifecycleService {
-    private final Object lock = new Object();
+    // Operations and listeners of a folder are serialized with the lock of its stripe.
+    // A thread never holds more than one of these locks: the outbox only queues operations
+    // for the sent folder and never takes its lock, so sending cannot wait for synchronization.
+    // The outbox takes no lock, the dispatcher lanes serialize sending per identity.
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final Map<Long, Long> reconciled = new ConcurrentHashMap<>();
+    private final SyncPacer pacer = new SyncPacer();
+    private final SyncScheduler scheduler = new SyncScheduler(SYNC_THREADS, SYNC_CONNECTIONS);
+    private final SmtpPool smtpPool = new SmtpPool();
+    private final DownloadScheduler downloads = DownloadScheduler.getInstance();
+    private final OutboxDispatcher outboxDispatcher = new OutboxDispatcher();
+    private final ExecutorService fetcher = Executors.newCachedThreadPool(Helper.backgroundThreadFactory);
     private TupleAccountStats lastStats = null;
     private ServiceManager serviceManager = new ServiceManager();
 
@@ -134,6 +159,17 @@ public class ServiceSynchronize extends LifecycleService {
     private static final int CONNECT_BACKOFF_MAX = 1024; // seconds (1024 sec ~ 17 min)
     private static final int SYNC_BATCH_SIZE = 20;
     private static final int DOWNLOAD_BATCH_SIZE = 20;
+    private static final int SYNC_PIPELINE_DEPTH = 2; // batches
+    private static final int SYNC_THREADS = 4; // all accounts
+    private static final int SYNC_CONNECTIONS = 12; // all accounts, open folders
+    private static final int LOCK_STRIPES = 16;
+    private static final int OUTBOX_THREADS = 3; // identities sending at the same time
+    private static final long OUTBOX_RETRY_START = 30 * 1000L; // milliseconds
+    private static final long OUTBOX_RETRY_MAX = 15 * 60 * 1000L; // milliseconds
+    private static final int OUTBOX_RETRY_ATTEMPTS = 5;
+    private static final int IDLE_FOLDERS_MAX = 5; // per account, other folders are polled
+    private static final int DELETE_BATCH_SIZE = 500; // below the SQLite host parameter limit
+    private static final long SYNC_RECONCILE_INTERVAL = 30 * 60 * 1000L; // milliseconds
     private static final int MESSAGE_AUTO_DOWNLOAD_SIZE = 32 * 1024; // bytes
     private static final int ATTACHMENT_AUTO_DOWNLOAD_SIZE = 32 * 1024; // bytes
     private static final long RECONNECT_BACKOFF = 90 * 1000L; // milliseconds
@@ -153,6 +189,10 @@ public class ServiceSynchronize extends LifecycleService {
         Log.i(Helper.TAG, "Service create version=" + BuildConfig.VERSION_NAME);
         super.onCreate();
 
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+
         // Listen for network changes
         ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
         NetworkRequest.Builder builder = new NetworkRequest.Builder();
@@ -163,6 +203,8 @@ public class ServiceSynchronize extends LifecycleService {
 
         DB db = DB.getInstance(this);
 
+        SearchIndex.backfill(this);
+
         db.account().liveStats().observe(this, new Observer<TupleAccountStats>() {
             @Override
             public void onChanged(@Nullable TupleAccountStats stats) {
@@ -268,6 +310,7 @@ public class ServiceSynchronize extends LifecycleService {
         cm.unregisterNetworkCallback(serviceManager);
 
         serviceManager.onLost(null);
+        serviceManager.destroy();
 
         Widget.update(this, -1);
 
@@ -700,18 +743,31 @@ public class ServiceSynchronize extends LifecycleService {
                 debug = debug || BuildConfig.DEBUG;
                 System.setProperty("mail.socket.debug", Boolean.toString(debug));
 
-                // Create session
-                Properties props = MessageHelper.getSessionProperties(account.auth_type, account.insecure);
-                final Session isession = Session.getInstance(props, null);
-                isession.setDebug(debug);
-
-                final IMAPStore istore = (IMAPStore) isession.getStore(account.starttls ? "imap" : "imaps");
                 final Map<EntityFolder, IMAPFolder> folders = new HashMap<>();
-                List<Thread> syncs = new ArrayList<>();
+                List<SyncScheduler.Job> syncs = new ArrayList<>();
+                Map<Long, SyncScheduler.Job> polls = new HashMap<>();
                 List<Thread> idlers = new ArrayList<>();
+                final Set<Long> idling = new HashSet<>();
+                ImapPool.Lease lease = null;
+                boolean broken = false;
+                StoreListener storeListener = null;
+                FolderListener folderListener = null;
+                ConnectionListener connectionListener = null;
+                IMAPFolder notifyFolder = null;
+                ResponseHandler notifyHandler = null;
                 try {
-                    // Listen for store events
-                    istore.addStoreListener(new StoreListener() {
+                    // Initiate connection, remote browsing shares the authenticated store
+                    Log.i(Helper.TAG, account.name + " connect");
+                    for (EntityFolder folder : db.folder().getFolders(account.id)) {
+                        db.folder().setFolderState(folder.id, null);
+                    }
+                    db.account().setAccountState(account.id, "connecting");
+                    lease = ImapPool.getInstance().lease(this, account);
+                    final Session isession = lease.session;
+                    final IMAPStore istore = lease.store;
+
+                    // Listen for store events, the pooled store outlives this connection
+                    storeListener = new StoreListener() {
                         PowerManager.WakeLock wl = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
                             BuildConfig.APPLICATION_ID + ":account." + account.id + ".store");
 
@@ -727,10 +783,11 @@ public class ServiceSynchronize extends LifecycleService {
                                 wl.release();
                             }
                         }
-                    });
+                    };
+                    istore.addStoreListener(storeListener);
 
                     // Listen for folder events
-                    istore.addFolderListener(new FolderAdapter() {
+                    folderListener = new FolderAdapter() {
                         PowerManager.WakeLock wl = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
                             BuildConfig.APPLICATION_ID + ":account." + account.id + ".folder");
 
@@ -775,10 +832,11 @@ public class ServiceSynchronize extends LifecycleService {
                                 wl.release();
                             }
                         }
-                    });
+                    };
+                    istore.addFolderListener(folderListener);
 
                     // Listen for connection events
-                    istore.addConnectionListener(new ConnectionAdapter() {
+                    connectionListener = new ConnectionAdapter() {
                         @Override
                         public void opened(ConnectionEvent e) {
                             Log.i(Helper.TAG, account.name + " opened");
@@ -793,17 +851,14 @@ public class ServiceSynchronize extends LifecycleService {
                         public void closed(ConnectionEvent e) {
                             Log.e(Helper.TAG, account.name + " closed event");
                         }
-                    });
+                    };
+                    istore.addConnectionListener(connectionListener);
 
-                    // Initiate connection
-                    Log.i(Helper.TAG, account.name + " connect");
-                    for (EntityFolder folder : db.folder().getFolders(account.id)) {
-                        db.folder().setFolderState(folder.id, null);
-                    }
-                    db.account().setAccountState(account.id, "connecting");
-                    Helper.connect(this, istore, account);
-                    final boolean capIdle = istore.hasCapability("IDLE");
-                    Log.i(Helper.TAG, account.name + " idle=" + capIdle);
+                    final boolean capIdle = lease.hasCapability("IDLE");
+                    final boolean capCondstore = lease.hasCapability("CONDSTORE");
+                    final boolean capQresync = lease.hasCapability("QRESYNC");
+                    Log.i(Helper.TAG, account.name + " idle=" + capIdle
+                        + " condstore=" + capCondstore + " qresync=" + capQresync);
                     db.account().setAccountState(account.id, "connected");
                     db.account().setAccountError(account.id, null);
 
@@ -812,16 +867,52 @@ public class ServiceSynchronize extends LifecycleService {
                     // Update folder list
                     synchronizeFolders(account, istore, state);
 
-                    // Open folders
-                    for (final EntityFolder folder : db.folder().getFolders(account.id, true)) {
+                    // Open folders, most important first
+                    List<EntityFolder> syncing = db.folder().getFolders(account.id, true);
+                    Collections.sort(syncing, new Comparator<EntityFolder>() {
+                        @Override
+                        public int compare(EntityFolder f1, EntityFolder f2) {
+                            return Integer.compare(SyncScheduler.priority(f1), SyncScheduler.priority(f2));
+                        }
+                    });
+                    final boolean capNotify = (capIdle && lease.hasCapability("NOTIFY"));
+                    final List<EntityFolder> notified = new ArrayList<>();
+                    final List<EntityFolder> ondemand = new ArrayList<>();
+                    for (final EntityFolder folder : syncing) {
+                        if (notified.contains(folder)) {
+                            continue;
+                        }
+
+                        // The first folder is always kept open, the others only within the connection budget
+                        if (folders.size() == 0) {
+                            scheduler.connectionOpened();
+                        } else if (!scheduler.tryConnection()) {
+                            Log.i(Helper.TAG, account.name + " on demand folder " + folder.name);
+                            ondemand.add(folder);
+                            continue;
+                        }
+
                         Log.i(Helper.TAG, account.name + " sync folder " + folder.name);
 
                         db.folder().setFolderState(folder.id, "connecting");
 
                         final IMAPFolder ifolder = (IMAPFolder) istore.getFolder(folder.name);
+                        final List<MailEvent> resync;
                         try {
-                            ifolder.open(Folder.READ_WRITE);
+                            // https://tools.ietf.org/html/rfc7162
+                            if (capQresync && folder.uidv != null && folder.modseq != null) {
+                                List<MailEvent> events =
+                                    ifolder.open(Folder.READ_WRITE, new ResyncData(folder.uidv, folder.modseq));
+                                resync = (events == null ? new ArrayList<MailEvent>() : events);
+                            } else if (capCondstore || capQresync) {
+                                ifolder.open(Folder.READ_WRITE, ResyncData.CONDSTORE);
+                                resync = null;
+                            } else {
+                                ifolder.open(Folder.READ_WRITE);
+                                resync = null;
+                            }
                         } catch (Throwable ex) {
+                            scheduler.connectionClosed();
                             db.folder().setFolderError(folder.id, Helper.formatThrowable(ex));
                             throw ex;
                         }
@@ -830,8 +921,47 @@ public class ServiceSynchronize extends LifecycleService {
                         db.folder().setFolderState(folder.id, "connected");
                         db.folder().setFolderError(folder.id, null);
 
+                        // Watch all other folders over the connection of the first folder
+                        if (capNotify && folders.size() == 1 && syncing.size() > 1) {
+                            final Map<String, Long> mailboxes = new HashMap<>();
+                            for (EntityFolder other : syncing) {
+                                if (!other.id.equals(folder.id)) {
+                                    mailboxes.put(other.name, other.id);
+                                }
+                            }
+
+                            ResponseHandler handler = new ResponseHandler() {
+                                @Override
+                                public void handleResponse(Response r) {
+                                    String mailbox = ImapHelper.getStatusMailbox(r);
+                                    Long fid = (mailbox == null ? null : mailboxes.get(mailbox));
+                                    if (fid != null) {
+                                        Log.i(Helper.TAG, account.name + " notify " + mailbox);
+                                        LocalBroadcastManager.getInstance(ServiceSynchronize.this).sendBroadcast(
+                                            new Intent(ACTION_SYNCHRONIZE_FOLDER)
+                                                .setType("account/" + account.id)
+                                                .putExtra("folder", fid));
+                                    }
+                                }
+                            };
+                            try {
+                                ImapHelper.notify(ifolder, new ArrayList<>(mailboxes.keySet()), handler);
+                                notifyFolder = ifolder;
+                                notifyHandler = handler;
+
+                                for (EntityFolder other : syncing) {
+                                    if (!other.id.equals(folder.id)) {
+                                        notified.add(other);
+                                    }
+                                }
+                                Log.i(Helper.TAG, account.name + " notify folders=" + notified.size());
+                            } catch (MessagingException ex) {
+                                Log.w(Helper.TAG, account.name + " notify " + ex + "\n" + Log.getStackTraceString(ex));
+                            }
+                        }
+
                         // Synchronize folder
-                        Thread sync = new Thread(new Runnable() {
+                        syncs.add(scheduler.schedule(folder, "sync." + folder.id, new Runnable() {
                             PowerManager.WakeLock wl = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
                                 BuildConfig.APPLICATION_ID + ":account." + account.id + ".sync");
 
@@ -847,7 +977,7 @@ public class ServiceSynchronize extends LifecycleService {
                                     ifolder.addMessageCountListener(new MessageCountAdapter() {
                                         @Override
                                         public void messagesAdded(MessageCountEvent e) {
-                                            synchronized (lock) {
+                                            synchronized (getLock(folder)) {
                                                 try {
                                                     wl.acquire();
                                                     Log.i(Helper.TAG, folder.name + " messages added");
@@ -858,10 +988,11 @@ public class ServiceSynchronize extends LifecycleService {
                                                     fp.add(FetchProfile.Item.CONTENT_INFO); // body structure
                                                     fp.add(UIDFolder.FetchProfileItem.UID);
                                                     fp.add(IMAPFolder.FetchProfileItem.HEADERS);
-                                                    fp.add(IMAPFolder.FetchProfileItem.MESSAGE);
                                                     fp.add(FetchProfile.Item.SIZE);
                                                     fp.add(IMAPFolder.FetchProfileItem.INTERNALDATE);
                                                     ifolder.fetch(e.getMessages(), fp);
+                                                    ContactCache.getInstance(ServiceSynchronize.this)
+                                                        .prefetch(Arrays.asList(e.getMessages()));
 
                                                     for (Message imessage : e.getMessages()) {
                                                         try {
@@ -903,22 +1034,21 @@ public class ServiceSynchronize extends LifecycleService {
 
                                         @Override
                                         public void messagesRemoved(MessageCountEvent e) {
-                                            synchronized (lock) {
+                                            synchronized (getLock(folder)) {
                                                 try {
                                                     wl.acquire();
                                                     Log.i(Helper.TAG, folder.name + " messages removed");
+                                                    List<Long> uids = new ArrayList<>();
                                                     for (Message imessage : e.getMessages()) {
                                                         try {
-                                                            long uid = ifolder.getUID(imessage);
-
-                                                            DB db = DB.getInstance(ServiceSynchronize.this);
-                                                            int count = db.message().deleteMessage(folder.id, uid);
-
-                                                            Log.i(Helper.TAG, "Deleted uid=" + uid + " count=" + count);
+                                                            uids.add(ifolder.getUID(imessage));
                                                         } catch (MessageRemovedException ex) {
                                                             Log.w(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
                                                         }
                                                     }
+
+                                                    int count = deleteMessages(folder, Helper.toLongArray(uids));
+                                                    Log.i(Helper.TAG, "Deleted uids=" + uids.size() + " count=" + count);
                                                 } catch (Throwable ex) {
                                                     Log.e(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
                                                     reportError(account.name, folder.name, ex);
@@ -933,8 +1063,15 @@ public class ServiceSynchronize extends LifecycleService {
                                         }
                                     });
 
+                                    // Remove messages expunged while disconnected
+                                    if (resync != null) {
+                                        synchronized (getLock(folder)) {
+                                            synchronizeVanished(folder, ifolder, resync);
+                                        }
+                                    }
+
                                     // Fetch e-mail
-                                    synchronizeMessages(account, folder, ifolder, state);
+                                    synchronizeMessages(account, folder, ifolder, state, resync != null);
 
                                     // Flags (like "seen") at the remote could be
                                     // changed while synchronizing
@@ -943,7 +1080,7 @@ public class ServiceSynchronize extends LifecycleService {
                                     ifolder.addMessageChangedListener(new MessageChangedListener() {
                                         @Override
                                         public void messageChanged(MessageChangedEvent e) {
-                                            synchronized (lock) {
+                                            synchronized (getLock(folder)) {
                                                 try {
                                                     wl.acquire();
                                                     try {
@@ -999,16 +1136,16 @@ public class ServiceSynchronize extends LifecycleService {
                                     wl.release();
                                 }
                             }
-                        }, "sync." + folder.id);
-                        sync.start();
-                        syncs.add(sync);
+                        }));
 
                         // Idle folder
-                        if (capIdle) {
+                        if (capIdle && idling.size() < IDLE_FOLDERS_MAX) {
+                            idling.add(folder.id);
                             Thread idler = new Thread(new Runnable() {
                                 @Override
                                 public void run() {
                                     try {
+                                        scheduler.idleStarted();
                                         Log.i(Helper.TAG, folder.name + " start idle");
                                         while (state.running) {
                                             Log.i(Helper.TAG, folder.name + " do idle");
@@ -1026,6 +1163,7 @@ public class ServiceSynchronize extends LifecycleService {
                                         state.thread.interrupt();
                                         yieldWakelock();
                                     } finally {
+                                        scheduler.idleStopped();
                                         Log.i(Helper.TAG, folder.name + " end idle");
                                     }
                                 }
@@ -1042,6 +1180,33 @@ public class ServiceSynchronize extends LifecycleService {
                     BroadcastReceiver processFolder = new BroadcastReceiver() {
                         @Override
                         public void onReceive(Context context, final Intent intent) {
+                            // Downloads the user is waiting for do not queue behind other folder work
+                            if (ACTION_PROCESS_OPERATIONS.equals(intent.getAction())) {
+                                long fid = intent.getLongExtra("folder", -1);
+                                for (final EntityFolder folder : folders.keySet()) {
+                                    if (folder.id == fid) {
+                                        final IMAPFolder ifolder = folders.get(folder);
+                                        downloads.schedule(DownloadScheduler.PRIORITY_OPENED, "download." + fid,
+                                            new Runnable() {
+                                                PowerManager.WakeLock wl = powerManager.newWakeLock(
+                                                    PowerManager.PARTIAL_WAKE_LOCK,
+                                                    BuildConfig.APPLICATION_ID + ":account." + account.id + ".download");
+
+                                                @Override
+                                                public void run() {
+                                                    try {
+                                                        wl.acquire();
+                                                        processDownloads(folder, ifolder);
+                                                    } finally {
+                                                        wl.release();
+                                                    }
+                                                }
+                                            });
+                                        break;
+                                    }
+                                }
+                            }
+
                             executor.submit(new Runnable() {
                                 PowerManager.WakeLock wl = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
                                     BuildConfig.APPLICATION_ID + ":account." + account.id + ".process");
@@ -1065,6 +1230,7 @@ public class ServiceSynchronize extends LifecycleService {
                                         }
 
                                         final boolean shouldClose = (folder == null);
+                                        boolean opened = false;
 
                                         try {
                                             if (folder == null) {
@@ -1084,6 +1250,8 @@ public class ServiceSynchronize extends LifecycleService {
 
                                                 db.folder().setFolderState(folder.id, "connecting");
 
+                                                scheduler.acquireConnection();
+                                                opened = true;
                                                 ifolder = (IMAPFolder) istore.getFolder(folder.name);
                                                 ifolder.open(Folder.READ_WRITE);
 
@@ -1095,7 +1263,7 @@ public class ServiceSynchronize extends LifecycleService {
                                                 processOperations(folder, isession, istore, ifolder);
                                             } else if (ACTION_SYNCHRONIZE_FOLDER.equals(intent.getAction())) {
                                                 processOperations(folder, isession, istore, ifolder);
-                                                synchronizeMessages(account, folder, ifolder, state);
+                                                synchronizeMessages(account, folder, ifolder, state, !shouldClose);
                                             }
 
                                         } catch (Throwable ex) {
@@ -1113,6 +1281,9 @@ public class ServiceSynchronize extends LifecycleService {
                                                         Log.w(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
                                                     }
                                                 }
+                                                if (opened) {
+                                                    scheduler.releaseConnection();
+                                                }
                                                 db.folder().setFolderState(folder.id, null);
                                             }
                                         }
@@ -1133,6 +1304,18 @@ public class ServiceSynchronize extends LifecycleService {
                     LocalBroadcastManager lbm = LocalBroadcastManager.getInstance(ServiceSynchronize.this);
                     lbm.registerReceiver(processFolder, f);
 
+                    // Folders watched with NOTIFY or over the connection budget are synchronized on demand only
+                    for (EntityFolder folder : notified) {
+                        lbm.sendBroadcast(new Intent(ACTION_SYNCHRONIZE_FOLDER)
+                            .setType("account/" + account.id)
+                            .putExtra("folder", folder.id));
+                    }
+                    for (EntityFolder folder : ondemand) {
+                        lbm.sendBroadcast(new Intent(ACTION_SYNCHRONIZE_FOLDER)
+                            .setType("account/" + account.id)
+                            .putExtra("folder", folder.id));
+                    }
+
                     for (EntityFolder folder : folders.keySet()) {
                         if (db.operation().getOperationCount(folder.id, null) > 0) {
                             Intent intent = new Intent();
@@ -1187,15 +1370,51 @@ public class ServiceSynchronize extends LifecycleService {
                                     throw new StoreClosedException(istore);
                                 }
 
+                                Log.i(Helper.TAG, account.name + " threads=" + scheduler.getThreadCount()
+                                    + " connections=" + scheduler.getConnectionCount()
+                                    + " queued=" + scheduler.getQueuedCount());
+
                                 for (EntityFolder folder : folders.keySet()) {
-                                    if (capIdle) {
+                                    if (idling.contains(folder.id)) {
                                         if (!folders.get(folder).isOpen()) {
                                             throw new FolderClosedException(folders.get(folder));
                                         }
+
+                                        // New messages arrive via IDLE, but flag changes and
+                                        // expunges need to be reconciled every now and then
+                                        Long last = reconciled.get(folder.id);
+                                        if (last == null
+                                            || last + SYNC_RECONCILE_INTERVAL < SystemClock.elapsedRealtime()) {
+                                            lbm.sendBroadcast(new Intent(ACTION_SYNCHRONIZE_FOLDER)
+                                                .setType("account/" + account.id)
+                                                .putExtra("folder", folder.id));
+                                        }
                                     } else {
-                                        synchronizeMessages(account, folder, folders.get(folder), state);
+                                        // Folders without IDLE are polled like any other sync job
+                                        SyncScheduler.Job poll = polls.get(folder.id);
+                                        if (poll == null || poll.isDone()) {
+                                            polls.put(folder.id, schedulePoll(account, folder, folders.get(folder), state));
+                                        }
                                     }
                                 }
+
+                                // NOTIFY does not report flag changes of other folders
+                                for (EntityFolder folder : notified) {
+                                    Long last = reconciled.get(folder.id);
+                                    if (last == null
+                                        || last + SYNC_RECONCILE_INTERVAL < SystemClock.elapsedRealtime()) {
+                                        lbm.sendBroadcast(new Intent(ACTION_SYNCHRONIZE_FOLDER)
+                                            .setType("account/" + account.id)
+                                            .putExtra("folder", folder.id));
+                                    }
+                                }
+
+                                // Folders over the connection budget are polled with a short lived connection
+                                for (EntityFolder folder : ondemand) {
+                                    lbm.sendBroadcast(new Intent(ACTION_SYNCHRONIZE_FOLDER)
+                                        .setType("account/" + account.id)
+                                        .putExtra("folder", folder.id));
+                                }
                             }
                         }
                     } finally {
@@ -1211,6 +1430,9 @@ public class ServiceSynchronize extends LifecycleService {
                     reportError(account.name, null, ex);
 
                     db.account().setAccountError(account.id, Helper.formatThrowable(ex));
+
+                    // Connection errors break the folders others opened on the store too
+                    broken = (ex instanceof MessagingException || ex instanceof IOException);
                 } finally {
                     EntityLog.log(this, account.name + " closing");
                     db.account().setAccountState(account.id, "closing");
@@ -1219,19 +1441,68 @@ public class ServiceSynchronize extends LifecycleService {
                     }
 
                     // Stop syncs
-                    for (Thread sync : syncs) {
-                        sync.interrupt();
-                        join(sync);
+                    for (SyncScheduler.Job sync : syncs) {
+                        sync.cancel();
+                        sync.join();
+                    }
+                    for (SyncScheduler.Job poll : polls.values()) {
+                        poll.cancel();
+                        poll.join();
+                    }
+
+                    // Stop listening to the store, it is shared and reused by the next connection
+                    if (lease != null) {
+                        if (storeListener != null) {
+                            lease.store.removeStoreListener(storeListener);
+                        }
+                        if (folderListener != null) {
+                            lease.store.removeFolderListener(folderListener);
+                        }
+                        if (connectionListener != null) {
+                            lease.store.removeConnectionListener(connectionListener);
+                        }
                     }
 
-                    // Close store
+                    // Close own folders and return the store, a broken store is closed for everybody
+                    final ImapPool.Lease closing = lease;
+                    final boolean closingBroken = broken;
+                    final List<IMAPFolder> closingFolders = new ArrayList<>(folders.values());
+                    final IMAPFolder closingNotify = notifyFolder;
+                    final ResponseHandler closingHandler = notifyHandler;
                     try {
                         Thread t = new Thread(new Runnable() {
                             @Override
                             public void run() {
                                 try {
-                                    EntityLog.log(ServiceSynchronize.this, account.name + " store closing");
-                                    istore.close();
+                                    if (closing == null) {
+                                        return;
+                                    }
+
+                                    // A connection still pushing events of all folders cannot be reused
+                                    boolean broken = closingBroken;
+                                    if (!broken && closingNotify != null && closingNotify.isOpen()) {
+                                        try {
+                                            ImapHelper.notifyNone(closingNotify, closingHandler);
+                                        } catch (MessagingException ex) {
+                                            Log.w(Helper.TAG, account.name + " " + ex + "\n" + Log.getStackTraceString(ex));
+                                            broken = true;
+                                        }
+                                    }
+
+                                    EntityLog.log(ServiceSynchronize.this,
+                                        account.name + " store closing broken=" + broken);
+                                    if (!broken) {
+                                        for (IMAPFolder ifolder : closingFolders) {
+                                            try {
+                                                if (ifolder.isOpen()) {
+                                                    ifolder.close(false);
+                                                }
+                                            } catch (MessagingException ex) {
+                                                Log.w(Helper.TAG, account.name + " " + ex + "\n" + Log.getStackTraceString(ex));
+                                            }
+                                        }
+                                    }
+                                    ImapPool.getInstance().release(closing, broken);
                                     EntityLog.log(ServiceSynchronize.this, account.name + " store closed");
                                 } catch (Throwable ex) {
                                     Log.w(Helper.TAG, account.name + " " + ex + "\n" + Log.getStackTraceString(ex));
@@ -1253,6 +1524,7 @@ public class ServiceSynchronize extends LifecycleService {
                         db.account().setAccountState(account.id, null);
                         for (EntityFolder folder : folders.keySet()) {
                             db.folder().setFolderState(folder.id, null);
+                            scheduler.connectionClosed();
                         }
                     }
 
@@ -1282,100 +1554,360 @@ public class ServiceSynchronize extends LifecycleService {
         }
     }
 
+    private Object getLock(EntityFolder folder) {
+        return locks[(int) (folder.id % LOCK_STRIPES)];
+    }
+
     private void processOperations(EntityFolder folder, Session isession, IMAPStore istore, IMAPFolder ifolder)
         throws MessagingException, JSONException, IOException {
-        synchronized (lock) {
-            try {
-                Log.i(Helper.TAG, folder.name + " start process");
+        synchronized (getLock(folder)) {
+            DB db = DB.getInstance(this);
+            EntityOperation.compact(db, folder.id);
+            List<EntityOperation> ops = db.operation().getOperationsByFolder(folder.id);
+            processOperations(folder, ops, isession, istore, ifolder);
+        }
+    }
 
-                DB db = DB.getInstance(this);
-                List<EntityOperation> ops = db.operation().getOperationsByFolder(folder.id);
-                Log.i(Helper.TAG, folder.name + " pending operations=" + ops.size());
-                for (EntityOperation op : ops) {
-                    try {
-                        Log.i(Helper.TAG,
-                            folder.name + " start op=" + op.id + "/" + op.name + " msg=" + op.message + " args=" + op.args);
+    private void processOperations(EntityFolder folder, List<EntityOperation> ops,
+                                   Session isession, IMAPStore istore, IMAPFolder ifolder)
+        throws MessagingException, JSONException, IOException {
+        try {
+            Log.i(Helper.TAG, folder.name + " start process");
+
+            DB db = DB.getInstance(this);
+            Log.i(Helper.TAG, folder.name + " pending operations=" + ops.size());
+
+            Set<Long> batched = (ifolder == null ? new HashSet<Long>() : processFlags(folder, ifolder, ops, db));
+            Set<Long> unbatched = new HashSet<>(); // failed as a batch, tried one by one
 
-                        // Fetch most recent copy of message
-                        EntityMessage message = null;
-                        if (op.message != null) {
-                            message = db.message().getMessage(op.message);
+            for (int i = 0; i < ops.size(); i++) {
+                EntityOperation op = ops.get(i);
+                if (batched.contains(op.id)) {
+                    continue;
+                }
+
+                // Consecutive moves to the same folder and deletes are executed at once
+                if (ifolder != null && !unbatched.contains(op.id)
+                    && (EntityOperation.MOVE.equals(op.name) || EntityOperation.DELETE.equals(op.name))) {
+                    List<EntityOperation> run = new ArrayList<>();
+                    for (int j = i; j < ops.size(); j++) {
+                        EntityOperation next = ops.get(j);
+                        if (batched.contains(next.id)) {
+                            continue;
+                        }
+                        if (!next.name.equals(op.name)
+                            || (EntityOperation.MOVE.equals(op.name) && !next.args.equals(op.args))) {
+                            break;
                         }
+                        run.add(next);
+                    }
 
-                        try {
-                            if (message == null) {
-                                throw new MessageRemovedException();
+                    if (run.size() > 1) {
+                        if (processBatch(folder, istore, ifolder, run, db)) {
+                            for (EntityOperation done : run) {
+                                batched.add(done.id);
                             }
+                            continue;
+                        }
+                        for (EntityOperation failed : run) {
+                            unbatched.add(failed.id);
+                        }
+                    }
+                }
 
-                            db.message().setMessageError(message.id, null);
+                // Downloads the user is waiting for might be running on a download thread already
+                boolean download =
+                    (EntityOperation.BODY.equals(op.name) || EntityOperation.ATTACHMENT.equals(op.name));
+                if (download && !downloads.claim(op.id)) {
+                    Log.i(Helper.TAG, folder.name + " downloading op=" + op.id);
+                    continue;
+                }
 
-                            if (message.uid == null && (EntityOperation.SEEN.equals(op.name) || EntityOperation.DELETE.equals(op.name)
-                                || EntityOperation.MOVE.equals(op.name) || EntityOperation.HEADERS.equals(op.name))) {
-                                throw new IllegalArgumentException(op.name + " without uid " + op.args);
-                            }
+                try {
+                    Log.i(Helper.TAG,
+                        folder.name + " start op=" + op.id + "/" + op.name + " msg=" + op.message + " args=" + op.args);
 
-                            JSONArray jargs = new JSONArray(op.args);
-
-                            if (EntityOperation.SEEN.equals(op.name)) {
-                                doSeen(folder, ifolder, message, jargs, db);
-                            } else if (EntityOperation.FLAG.equals(op.name)) {
-                                doFlag(folder, ifolder, message, jargs, db);
-                            } else if (EntityOperation.ADD.equals(op.name)) {
-                                doAdd(folder, isession, ifolder, message, jargs, db);
-                            } else if (EntityOperation.MOVE.equals(op.name)) {
-                                doMove(folder, isession, istore, ifolder, message, jargs, db);
-                            } else if (EntityOperation.DELETE.equals(op.name)) {
-                                doDelete(folder, ifolder, message, jargs, db);
-                            } else if (EntityOperation.SEND.equals(op.name)) {
-                                doSend(message, db);
-                            } else if (EntityOperation.HEADERS.equals(op.name)) {
-                                doHeaders(folder, ifolder, message, db);
-                            } else if (EntityOperation.BODY.equals(op.name)) {
-                                doBody(folder, ifolder, message, db);
-                            } else if (EntityOperation.ATTACHMENT.equals(op.name)) {
-                                doAttachment(folder, op, ifolder, message, jargs, db);
-                            } else {
-                                throw new MessagingException("Unknown operation name=" + op.name);
-                            }
+                    // Fetch most recent copy of message
+                    EntityMessage message = null;
+                    if (op.message != null) {
+                        message = db.message().getMessage(op.message);
+                    }
 
-                            // Operation succeeded
-                            db.operation().deleteOperation(op.id);
-                        } catch (Throwable ex) {
-                            // TODO: SMTP response codes: https://www.ietf.org/rfc/rfc821.txt
-                            if (ex instanceof SendFailedException) {
-                                reportError(null, folder.name, ex);
-                            }
+                    try {
+                        if (message == null) {
+                            throw new MessageRemovedException();
+                        }
 
-                            if (message != null) {
-                                db.message().setMessageError(message.id, Helper.formatThrowable(ex));
-                            }
+                        db.message().setMessageError(message.id, null);
 
-                            if (ex instanceof MessageRemovedException || ex instanceof FolderNotFoundException
-                                || ex instanceof SendFailedException) {
-                                Log.w(Helper.TAG, "Unrecoverable " + ex + "\n" + Log.getStackTraceString(ex));
-
-                                // There is no use in repeating
-                                db.operation().deleteOperation(op.id);
-                                continue;
-                            } else if (ex instanceof MessagingException) {
-                                // Socket timeout is a recoverable condition (send message)
-                                if (ex.getCause() instanceof SocketTimeoutException) {
-                                    Log.w(Helper.TAG, "Recoverable " + ex + "\n" + Log.getStackTraceString(ex));
-                                    // No need to inform user
-                                    return;
-                                }
-                            }
+                        if (message.uid == null && (EntityOperation.SEEN.equals(op.name) || EntityOperation.DELETE.equals(op.name)
+                            || EntityOperation.MOVE.equals(op.name) || EntityOperation.HEADERS.equals(op.name))) {
+                            throw new IllegalArgumentException(op.name + " without uid " + op.args);
+                        }
 
-                            throw ex;
+                        JSONArray jargs = new JSONArray(op.args);
+
+                        if (EntityOperation.SEEN.equals(op.name)) {
+                            doSeen(folder, ifolder, message, jargs, db);
+                        } else if (EntityOperation.FLAG.equals(op.name)) {
+                            doFlag(folder, ifolder, message, jargs, db);
+                        } else if (EntityOperation.ADD.equals(op.name)) {
+                            doAdd(folder, isession, ifolder, message, jargs, db);
+                        } else if (EntityOperation.MOVE.equals(op.name)) {
+                            doMove(folder, isession, istore, ifolder, message, jargs, db);
+                        } else if (EntityOperation.DELETE.equals(op.name)) {
+                            doDelete(folder, ifolder, message, jargs, db);
+                        } else if (EntityOperation.SEND.equals(op.name)) {
+                            doSend(message, db);
+                        } else if (EntityOperation.HEADERS.equals(op.name)) {
+                            doHeaders(folder, ifolder, message, db);
+                        } else if (EntityOperation.BODY.equals(op.name)) {
+                            doBody(folder, ifolder, message, db);
+                        } else if (EntityOperation.ATTACHMENT.equals(op.name)) {
+                            doAttachment(folder, op, ifolder, message, jargs, db);
+                        } else {
+                            throw new MessagingException("Unknown operation name=" + op.name);
                         }
-                    } finally {
-                        Log.i(Helper.TAG, folder.name + " end op=" + op.id + "/" + op.name);
+
+                        // Operation succeeded
+                        db.operation().deleteOperation(op.id);
+                    } catch (Throwable ex) {
+                        // TODO: SMTP response codes: https://www.ietf.org/rfc/rfc821.txt
+                        if (ex instanceof SendFailedException) {
+                            reportError(null, folder.name, ex);
+                        }
+
+                        if (message != null) {
+                            db.message().setMessageError(message.id, Helper.formatThrowable(ex));
+                        }
+
+                        if (ex instanceof MessageRemovedException || ex instanceof FolderNotFoundException
+                            || ex instanceof SendFailedException) {
+                            Log.w(Helper.TAG, "Unrecoverable " + ex + "\n" + Log.getStackTraceString(ex));
+
+                            // There is no use in repeating
+                            db.operation().deleteOperation(op.id);
+                            continue;
+                        } else if (ex instanceof MessagingException) {
+                            // Socket timeout is a recoverable condition (send message)
+                            if (ex.getCause() instanceof SocketTimeoutException) {
+                                Log.w(Helper.TAG, "Recoverable " + ex + "\n" + Log.getStackTraceString(ex));
+                                // No need to inform user
+                                return;
+                            }
+                        }
+
+                        throw ex;
+                    }
+                } finally {
+                    if (download) {
+                        downloads.release(op.id);
                     }
+                    Log.i(Helper.TAG, folder.name + " end op=" + op.id + "/" + op.name);
+                }
+            }
+        } finally {
+            Log.i(Helper.TAG, folder.name + " end process");
+        }
+    }
+
+    // Only body and attachment operations, without waiting for the folder lock
+    private void processDownloads(EntityFolder folder, IMAPFolder ifolder) {
+        DB db = DB.getInstance(this);
+        for (EntityOperation op : db.operation().getOperationsByFolder(folder.id)) {
+            if (!EntityOperation.BODY.equals(op.name) && !EntityOperation.ATTACHMENT.equals(op.name)) {
+                continue;
+            }
+            if (!downloads.claim(op.id)) {
+                continue;
+            }
+
+            try {
+                Log.i(Helper.TAG, folder.name + " download op=" + op.id + "/" + op.name + " msg=" + op.message);
+                EntityMessage message = (op.message == null ? null : db.message().getMessage(op.message));
+                if (message == null || message.uid == null) {
+                    continue;
+                }
+
+                if (EntityOperation.BODY.equals(op.name)) {
+                    doBody(folder, ifolder, message, db);
+                } else {
+                    doAttachment(folder, op, ifolder, message, new JSONArray(op.args), db);
                 }
+
+                db.operation().deleteOperation(op.id);
+            } catch (Throwable ex) {
+                // Processing the operations will retry and report
+                Log.w(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
             } finally {
-                Log.i(Helper.TAG, folder.name + " end process");
+                downloads.release(op.id);
+            }
+        }
+    }
+
+    private Set<Long> processFlags(EntityFolder folder, IMAPFolder ifolder, List<EntityOperation> ops, DB db) {
+        Set<Long> batched = new HashSet<>();
+
+        // Messages with operations changing their location are processed one operation at a time
+        Set<Long> excluded = new HashSet<>();
+        for (EntityOperation op : ops) {
+            if (op.message != null
+                && !EntityOperation.SEEN.equals(op.name) && !EntityOperation.FLAG.equals(op.name)) {
+                excluded.add(op.message);
+            }
+        }
+
+        // Only the last requested value of a flag matters
+        Map<Long, EntityMessage> messages = new HashMap<>();
+        Map<Long, Boolean> seen = new HashMap<>();
+        Map<Long, Boolean> flagged = new HashMap<>();
+        List<Long> ids = new ArrayList<>();
+        for (EntityOperation op : ops) {
+            boolean isSeen = EntityOperation.SEEN.equals(op.name);
+            if ((!isSeen && !EntityOperation.FLAG.equals(op.name))
+                || op.message == null || excluded.contains(op.message)) {
+                continue;
+            }
+
+            EntityMessage message = messages.get(op.message);
+            if (message == null) {
+                message = db.message().getMessage(op.message);
+            }
+            if (message == null || message.uid == null) {
+                continue;
+            }
+
+            try {
+                boolean value = new JSONArray(op.args).getBoolean(0);
+                (isSeen ? seen : flagged).put(message.id, value);
+                messages.put(message.id, message);
+                ids.add(op.id);
+            } catch (JSONException ex) {
+                Log.w(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
+            }
+        }
+
+        if (ids.size() == 0) {
+            return batched;
+        }
+
+        try {
+            for (boolean value : new boolean[] {true, false}) {
+                List<Long> seenUids = new ArrayList<>();
+                for (Map.Entry<Long, Boolean> entry : seen.entrySet()) {
+                    EntityMessage message = messages.get(entry.getKey());
+                    if (entry.getValue() == value && message.seen != value) {
+                        seenUids.add(message.uid);
+                    }
+                }
+                if (seenUids.size() > 0) {
+                    ImapHelper.storeFlag(ifolder, Helper.toLongArray(seenUids), "\\Seen", value);
+                }
+
+                List<Long> flaggedUids = new ArrayList<>();
+                for (Map.Entry<Long, Boolean> entry : flagged.entrySet()) {
+                    EntityMessage message = messages.get(entry.getKey());
+                    if (entry.getValue() == value && message.flagged != value) {
+                        flaggedUids.add(message.uid);
+                    }
+                }
+                if (flaggedUids.size() > 0) {
+                    ImapHelper.storeFlag(ifolder, Helper.toLongArray(flaggedUids), "\\Flagged", value);
+                }
+            }
+        } catch (MessagingException ex) {
+            // Fall back to processing operations one by one
+            Log.w(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
+            return batched;
+        }
+
+        try {
+            db.beginTransaction();
+
+            for (Map.Entry<Long, Boolean> entry : seen.entrySet()) {
+                db.message().setMessageSeen(entry.getKey(), entry.getValue());
+            }
+            for (Map.Entry<Long, Boolean> entry : flagged.entrySet()) {
+                db.message().setMessageFlagged(entry.getKey(), entry.getValue());
+            }
+            for (int i = 0; i < ids.size(); i += DELETE_BATCH_SIZE) {
+                db.operation().deleteOperations(ids.subList(i, Math.min(ids.size(), i + DELETE_BATCH_SIZE)));
+            }
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        batched.addAll(ids);
+        Log.i(Helper.TAG, folder.name + " batched flag operations=" + ids.size()
+            + " seen=" + seen.size() + " flagged=" + flagged.size());
+        return batched;
+    }
+
+    private boolean processBatch(EntityFolder folder, IMAPStore istore, IMAPFolder ifolder,
+                                 List<EntityOperation> ops, DB db) {
+        boolean move = EntityOperation.MOVE.equals(ops.get(0).name);
+        Log.i(Helper.TAG, folder.name + " batch op=" + ops.get(0).name + " count=" + ops.size());
+
+        // Errors of single messages are reported by the one-by-one fallback
+        List<Long> ids = new ArrayList<>();
+        List<Long> uids = new ArrayList<>();
+        for (EntityOperation op : ops) {
+            EntityMessage message = (op.message == null ? null : db.message().getMessage(op.message));
+            if (message == null || message.uid == null) {
+                return false;
+            }
+            ids.add(message.id);
+            uids.add(message.uid);
+        }
+
+        try {
+            if (move) {
+                if (!istore.hasCapability("MOVE")) {
+                    return false;
+                }
+
+                EntityFolder target = db.folder().getFolder(new JSONArray(ops.get(0).args).getLong(0));
+                if (target == null) {
+                    return false;
+                }
+
+                ImapHelper.move(ifolder, Helper.toLongArray(uids), target.name);
+            } else {
+                ImapHelper.storeFlag(ifolder, Helper.toLongArray(uids), "\\Deleted", true);
+                if (istore.hasCapability("UIDPLUS")) {
+                    ImapHelper.expunge(ifolder, Helper.toLongArray(uids));
+                } else {
+                    ifolder.expunge();
+                }
+            }
+        } catch (JSONException ex) {
+            Log.w(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
+            return false;
+        } catch (MessagingException ex) {
+            Log.w(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
+            return false;
+        }
+
+        try {
+            db.beginTransaction();
+
+            for (EntityOperation op : ops) {
+                db.operation().deleteOperation(op.id);
+            }
+            if (!move) {
+                for (Long id : ids) {
+                    db.message().deleteMessage(id);
+                }
             }
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
+
+        return true;
     }
 
     private void doSeen(EntityFolder folder, IMAPFolder ifolder, EntityMessage message, JSONArray jargs, DB db)
@@ -1474,7 +2006,11 @@ public class ServiceSynchronize extends LifecycleService {
         }
 
         imessage.setFlag(Flags.Flag.DELETED, true);
-        ifolder.expunge();
+        if (((IMAPStore) ifolder.getStore()).hasCapability("UIDPLUS")) {
+            ImapHelper.expunge(ifolder, new long[] {message.uid});
+        } else {
+            ifolder.expunge();
+        }
 
         db.message().deleteMessage(message.id);
     }
@@ -1502,22 +2038,25 @@ public class ServiceSynchronize extends LifecycleService {
             imessage.setReplyTo(new Address[] {new InternetAddress(ident.replyto)});
         }
 
-        // Create transport
-        // TODO: cache transport?
-        Transport itransport = isession.getTransport(ident.starttls ? "smtp" : "smtps");
+        // Get transport, connected and authenticated already if recently used
+        Transport itransport = smtpPool.lease(ident);
+        boolean reusable = false;
         try {
-            // Connect transport
-            db.identity().setIdentityState(ident.id, "connecting");
-            try {
-                itransport.connect(ident.host, ident.port, ident.user, ident.password);
-            } catch (AuthenticationFailedException ex) {
-                if (ident.auth_type == Helper.AUTH_TYPE_GMAIL) {
-                    EntityAccount account = db.account().getAccount(ident.account);
-                    ident.password = Helper.refreshToken(this, "com.google", ident.user, account.password);
-                    DB.getInstance(this).identity().setIdentityPassword(ident.id, ident.password);
+            if (itransport == null) {
+                // Connect transport
+                itransport = isession.getTransport(ident.starttls ? "smtp" : "smtps");
+                db.identity().setIdentityState(ident.id, "connecting");
+                try {
                     itransport.connect(ident.host, ident.port, ident.user, ident.password);
-                } else {
-                    throw ex;
+                } catch (AuthenticationFailedException ex) {
+                    if (ident.auth_type == Helper.AUTH_TYPE_GMAIL) {
+                        EntityAccount account = db.account().getAccount(ident.account);
+                        ident.password = Helper.refreshToken(this, "com.google", ident.user, account.password);
+                        DB.getInstance(this).identity().setIdentityPassword(ident.id, ident.password);
+                        itransport.connect(ident.host, ident.port, ident.user, ident.password);
+                    } else {
+                        throw ex;
+                    }
                 }
             }
             db.identity().setIdentityState(ident.id, "connected");
@@ -1528,6 +2067,7 @@ public class ServiceSynchronize extends LifecycleService {
             itransport.sendMessage(imessage, to);
             Log.i(Helper.TAG,
                 "Sent via " + ident.host + "/" + ident.user + " to " + TextUtils.join(", ", to));
+            reusable = true;
 
             try {
                 db.beginTransaction();
@@ -1561,7 +2101,14 @@ public class ServiceSynchronize extends LifecycleService {
             throw ex;
         } finally {
             try {
-                itransport.close();
+                // A connection in an unknown state after an error is not reused
+                if (itransport != null) {
+                    if (reusable) {
+                        smtpPool.release(ident, itransport);
+                    } else {
+                        SmtpPool.close(itransport);
+                    }
+                }
             } finally {
                 db.identity().setIdentityState(ident.id, null);
             }
@@ -1598,7 +2145,8 @@ public class ServiceSynchronize extends LifecycleService {
         }
 
         MessageHelper helper = new MessageHelper((MimeMessage) imessage);
-        message.write(this, helper.getHtml());
+        helper.writeHtml(EntityMessage.getFile(this, message.id));
+        SearchIndex.setText(db, message.id, EntityMessage.getFile(this, message.id));
         db.message().setMessageContent(message.id, true);
     }
 
@@ -1620,11 +2168,39 @@ public class ServiceSynchronize extends LifecycleService {
             throw new MessageRemovedException();
         }
 
-        // Download attachment
-        MessageHelper helper = new MessageHelper((MimeMessage) imessage);
-        EntityAttachment a = helper.getAttachments().get(sequence - 1);
-        attachment.part = a.part;
-        attachment.download(this, db);
+        // Download attachment, attachments stored before their section was known need the structure
+        if (attachment.section == null) {
+            MessageHelper helper = new MessageHelper((MimeMessage) imessage);
+            EntityAttachment a = helper.getAttachments().get(sequence - 1);
+            attachment.part = a.part;
+        }
+        attachment.download(this, db, (IMAPMessage) imessage);
+    }
+
+    private SyncScheduler.Job schedulePoll(final EntityAccount account, final EntityFolder folder,
+                                           final IMAPFolder ifolder, final ServiceState state) {
+        return scheduler.schedule(folder, "poll." + folder.id, new Runnable() {
+            PowerManager.WakeLock wl = ((PowerManager) getSystemService(POWER_SERVICE)).newWakeLock(
+                PowerManager.PARTIAL_WAKE_LOCK, BuildConfig.APPLICATION_ID + ":account." + account.id + ".poll");
+
+            @Override
+            public void run() {
+                try {
+                    wl.acquire();
+                    synchronizeMessages(account, folder, ifolder, state, true);
+                } catch (Throwable ex) {
+                    Log.e(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
+                    reportError(account.name, folder.name, ex);
+
+                    DB.getInstance(ServiceSynchronize.this).folder().setFolderError(folder.id, Helper.formatThrowable(ex));
+
+                    state.thread.interrupt();
+                    yieldWakelock();
+                } finally {
+                    wl.release();
+                }
+            }
+        });
     }
 
     private void synchronizeFolders(EntityAccount account, IMAPStore istore, ServiceState state)
@@ -1684,179 +2260,561 @@ public class ServiceSynchronize extends LifecycleService {
         }
     }
 
-    private void synchronizeMessages(EntityAccount account, EntityFolder folder, IMAPFolder ifolder,
-                                     ServiceState state) throws MessagingException, IOException {
-        DB db = DB.getInstance(this);
+    private void synchronizeVanished(EntityFolder folder, IMAPFolder ifolder, List<MailEvent> events)
+        throws MessagingException {
+        if (folder.uidv == null || folder.uidv != ifolder.getUIDValidity()) {
+            return;
+        }
+
+        for (MailEvent event : events) {
+            if (event instanceof MessageVanishedEvent) {
+                long[] uids = ((MessageVanishedEvent) event).getUIDs();
+                int count = deleteMessages(folder, uids);
+                Log.i(Helper.TAG, folder.name + " vanished uids=" + uids.length + " count=" + count);
+            }
+        }
+    }
+
+    private int deleteMessages(EntityFolder folder, long[] uids) {
+        if (uids.length == 0) {
+            return 0;
+        }
+
+        // One transaction results in one invalidation of the message lists
+        DB db = DB.getInstance(this);
+        int count = 0;
         try {
-            Log.v(Helper.TAG, folder.name + " start sync after=" + folder.after);
+            db.beginTransaction();
+            for (int i = 0; i < uids.length; i += DELETE_BATCH_SIZE) {
+                long[] chunk = Arrays.copyOfRange(uids, i, Math.min(uids.length, i + DELETE_BATCH_SIZE));
+                count += db.message().deleteMessages(folder.id, Helper.fromLongArray(chunk));
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return count;
+    }
+
+    // Reconciling and storing messages is done under the folder lock,
+    // downloading contents is not, so other folders of the same stripe are not held up
+    private void synchronizeMessages(EntityAccount account, EntityFolder folder, IMAPFolder ifolder,
+                                     ServiceState state, boolean resync) throws MessagingException, IOException {
+        DB db = DB.getInstance(this);
+        Object lock = getLock(folder);
+        try {
+            Log.v(Helper.TAG, folder.name + " start sync after=" + folder.after + " resync=" + resync);
+            pacer.start();
 
             db.folder().setFolderState(folder.id, "syncing");
 
-            // Get reference times
-            Calendar cal = Calendar.getInstance();
-            cal.add(Calendar.DAY_OF_MONTH, -folder.after);
-            cal.set(Calendar.HOUR_OF_DAY, 0);
-            cal.set(Calendar.MINUTE, 0);
-            cal.set(Calendar.SECOND, 0);
-            cal.set(Calendar.MILLISECOND, 0);
+            long ago;
+            long uidv;
+            boolean condstore;
+            boolean fast;
+            boolean reconcile;
+            long uidnext;
+            Message[] inew = null;
+            Long[] inewIds = null;
+            IMAPStore istore = (IMAPStore) ifolder.getStore();
+
+            synchronized (lock) {
+                // Get reference times
+                Calendar cal = Calendar.getInstance();
+                cal.add(Calendar.DAY_OF_MONTH, -folder.after);
+                cal.set(Calendar.HOUR_OF_DAY, 0);
+                cal.set(Calendar.MINUTE, 0);
+                cal.set(Calendar.SECOND, 0);
+                cal.set(Calendar.MILLISECOND, 0);
+
+                ago = cal.getTimeInMillis();
+                if (ago < 0) {
+                    ago = 0;
+                }
+
+                Log.i(Helper.TAG, folder.name + " ago=" + new Date(ago));
+
+                // Delete old local messages
+                int old = db.message().deleteMessagesBefore(folder.id, ago);
+                Log.i(Helper.TAG, folder.name + " local old=" + old);
+
+                // Local uids are meaningless when the UID validity changed
+                uidv = ifolder.getUIDValidity();
+                if (folder.uidv != null && folder.uidv != uidv) {
+                    int count = db.message().deleteLocalMessages(folder.id);
+                    Log.w(Helper.TAG, folder.name + " uid validity changed=" + folder.uidv + "/" + uidv
+                        + " deleted=" + count);
+                    folder.modseq = null;
+                    folder.uidnext = null;
+                }
+
+                // Only changes since the last known modification sequence are needed when
+                // the vanished messages are known, either from the QRESYNC folder open
+                // or from the expunge listener of an already synchronized folder
+                condstore = resync
+                    && folder.uidv != null && folder.uidv == uidv && folder.modseq != null
+                    && (istore.hasCapability("CONDSTORE") || istore.hasCapability("QRESYNC"));
+
+                // New messages have a UID of at least the last seen UIDNEXT
+                fast = (folder.uidv != null && folder.uidv == uidv && folder.uidnext != null);
+
+                // Reconciling flags and expunged messages requires all messages in the window,
+                // so do it only every now and then, unless the server can tell what changed
+                Long last = reconciled.get(folder.id);
+                reconcile = (!fast || condstore
+                    || last == null || last + SYNC_RECONCILE_INTERVAL < SystemClock.elapsedRealtime());
+                Log.i(Helper.TAG, folder.name + " fast=" + fast + " reconcile=" + reconcile
+                    + " condstore=" + condstore + " uidnext=" + folder.uidnext);
+
+                uidnext = (folder.uidnext == null ? 0 : folder.uidnext);
+
+                if (fast) {
+                    long search = SystemClock.elapsedRealtime();
+                    Message[] ilatest = ifolder.getMessagesByUID(folder.uidnext, UIDFolder.LASTUID);
+
+                    // UID x:* always includes the last message
+                    List<Message> latest = new ArrayList<>();
+                    for (Message imessage : ilatest) {
+                        if (imessage != null) {
+                            long uid = ifolder.getUID(imessage);
+                            if (uid >= folder.uidnext) {
+                                latest.add(imessage);
+                            }
+                            uidnext = Math.max(uidnext, uid + 1);
+                        }
+                    }
+                    inew = latest.toArray(new Message[0]);
+                    Log.i(Helper.TAG, folder.name + " remote new=" + inew.length + " "
+                        + (SystemClock.elapsedRealtime() - search) + " ms");
+
+                    inewIds = synchronizeBatches(folder, ifolder, inew, ago, true, state);
+                    if (inewIds == null) {
+                        return;
+                    }
+
+                    if (!reconcile) {
+                        updateSyncState(folder, uidv, folder.modseq, uidnext);
+                    }
+                }
+            }
+
+            if (fast) {
+                downloadBatches(folder, ifolder, inew, inewIds, state);
 
-            long ago = cal.getTimeInMillis();
-            if (ago < 0) {
-                ago = 0;
+                if (!reconcile) {
+                    return;
+                }
+
+                db.folder().setFolderState(folder.id, "syncing");
             }
 
-            Log.i(Helper.TAG, folder.name + " ago=" + new Date(ago));
+            Message[] imessages;
+            Long[] ids;
 
-            // Delete old local messages
-            int old = db.message().deleteMessagesBefore(folder.id, ago);
-            Log.i(Helper.TAG, folder.name + " local old=" + old);
+            synchronized (lock) {
+                long[] uids;
 
-            // Get list of local uids
-            List<Long> uids = db.message().getUids(folder.id, ago);
-            Log.i(Helper.TAG, folder.name + " local count=" + uids.size());
+                if (condstore) {
+                    uids = null;
 
-            // Reduce list of local uids
-            long search = SystemClock.elapsedRealtime();
-            Message[] imessages = ifolder.search(new ReceivedDateTerm(ComparisonTerm.GE, new Date(ago)));
-            Log.i(Helper.TAG, folder.name + " remote count=" + imessages.length + " search="
-                + (SystemClock.elapsedRealtime() - search) + " ms");
+                    long search = SystemClock.elapsedRealtime();
+                    imessages = ifolder.getMessagesByUIDChangedSince(1, UIDFolder.LASTUID, folder.modseq);
+                    Log.i(Helper.TAG, folder.name + " remote changed=" + imessages.length
+                        + " modseq=" + folder.modseq + " " + (SystemClock.elapsedRealtime() - search) + " ms");
+                } else {
+                    // Get list of local uids
+                    uids = Helper.toLongArray(db.message().getUids(folder.id, ago));
+                    Log.i(Helper.TAG, folder.name + " local count=" + uids.length);
+
+                    // Reduce list of local uids
+                    long search = SystemClock.elapsedRealtime();
+                    imessages = ifolder.search(new ReceivedDateTerm(ComparisonTerm.GE, new Date(ago)));
+                    Log.i(Helper.TAG, folder.name + " remote count=" + imessages.length + " search="
+                        + (SystemClock.elapsedRealtime() - search) + " ms");
+
+                    FetchProfile fp = new FetchProfile();
+                    fp.add(UIDFolder.FetchProfileItem.UID);
+                    fp.add(FetchProfile.Item.FLAGS);
+
+                    long fetch = SystemClock.elapsedRealtime();
+                    ifolder.fetch(imessages, fp);
+                    Log.i(Helper.TAG,
+                        folder.name + " remote fetched=" + (SystemClock.elapsedRealtime() - fetch) + " ms");
+                }
 
-            FetchProfile fp = new FetchProfile();
-            fp.add(UIDFolder.FetchProfileItem.UID);
-            fp.add(FetchProfile.Item.FLAGS);
-            ifolder.fetch(imessages, fp);
+                long[] ruids = new long[imessages.length];
+                int rcount = 0;
+                for (Message imessage : imessages) {
+                    if (!state.running) {
+                        return;
+                    }
 
-            long fetch = SystemClock.elapsedRealtime();
-            Log.i(Helper.TAG,
-                folder.name + " remote fetched=" + (SystemClock.elapsedRealtime() - fetch) + " ms");
+                    try {
+                        long uid = ifolder.getUID(imessage);
+                        ruids[rcount++] = uid;
+                        uidnext = Math.max(uidnext, uid + 1);
+                    } catch (MessageRemovedException ex) {
+                        Log.w(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
+                    } catch (Throwable ex) {
+                        Log.e(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
+                        reportError(account.name, folder.name, ex);
 
-            for (Message imessage : imessages) {
-                if (!state.running) {
+                        db.folder().setFolderError(folder.id, Helper.formatThrowable(ex));
+                    }
+                }
+
+                // Delete local messages not at remote
+                long[] removed = (uids == null
+                    ? new long[0] : UidDiff.removed(uids, Arrays.copyOf(ruids, rcount)));
+                int deleted = deleteMessages(folder, removed);
+                Log.i(Helper.TAG, folder.name + " delete=" + removed.length + " count=" + deleted);
+
+                // Add/update local messages
+                // - changed messages are not limited to the synchronization window
+                ids = synchronizeBatches(folder, ifolder, imessages, ago, condstore, state);
+                if (ids == null) {
                     return;
                 }
 
+                // Remember synchronization point
+                Long modseq = folder.modseq;
+                if (condstore) {
+                    for (Message imessage : imessages) {
+                        long mod = ((IMAPMessage) imessage).getModSeq();
+                        if (mod > modseq) {
+                            modseq = mod;
+                        }
+                    }
+                } else {
+                    long highest = (istore.hasCapability("CONDSTORE") || istore.hasCapability("QRESYNC")
+                        ? ifolder.getHighestModSeq() : -1);
+                    modseq = (highest > 0 ? highest : null);
+                }
+                uidnext = Math.max(uidnext, ifolder.getUIDNext());
+                updateSyncState(folder, uidv, modseq, uidnext);
+                reconciled.put(folder.id, SystemClock.elapsedRealtime());
+            }
+
+            downloadBatches(folder, ifolder, imessages, ids, state);
+
+        } finally {
+            pacer.stop();
+            Log.v(Helper.TAG, folder.name + " end sync");
+            db.folder().setFolderState(folder.id, ifolder.isOpen() ? "connected" : "disconnected");
+        }
+    }
+
+    private void updateSyncState(EntityFolder folder, long uidv, Long modseq, long uidnext) {
+        DB db = DB.getInstance(this);
+        Long next = (uidnext > 0 ? uidnext : null);
+
+        if (folder.uidv == null || folder.uidv != uidv
+            || (modseq == null ? folder.modseq != null : !modseq.equals(folder.modseq))) {
+            folder.uidv = uidv;
+            folder.modseq = modseq;
+            db.folder().setFolderModSeq(folder.id, uidv, modseq);
+            Log.i(Helper.TAG, folder.name + " uidv=" + uidv + " modseq=" + modseq);
+        }
+
+        if (next == null ? folder.uidnext != null : !next.equals(folder.uidnext)) {
+            folder.uidnext = next;
+            db.folder().setFolderUidNext(folder.id, next);
+            Log.i(Helper.TAG, folder.name + " uidnext=" + next);
+        }
+    }
+
+    private static class SyncBatch {
+        int from;
+        Message[] isub;
+        List<Message> skip;
+        Throwable error;
+    }
+
+    private Long[] synchronizeBatches(final EntityFolder folder, final IMAPFolder ifolder, final Message[] imessages,
+                                      final long ago, final boolean filter, final ServiceState state)
+        throws MessagingException, IOException {
+        // Fetching the next batch from the server and storing the previous batch overlap,
+        // the bounded queue keeps the fetcher at most a few batches ahead
+        final BlockingQueue<SyncBatch> queue = new ArrayBlockingQueue<>(SYNC_PIPELINE_DEPTH);
+        final SyncBatch end = new SyncBatch();
+
+        Future<?> producer = fetcher.submit(new Runnable() {
+            @Override
+            public void run() {
                 try {
-                    uids.remove(ifolder.getUID(imessage));
-                } catch (MessageRemovedException ex) {
-                    Log.w(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
+                    for (int i = imessages.length - 1; i >= 0 && state.running; i -= SYNC_BATCH_SIZE) {
+                        int from = Math.max(0, i - SYNC_BATCH_SIZE + 1);
+                        queue.put(fetchBatch(folder, ifolder, Arrays.copyOfRange(imessages, from, i + 1),
+                            from, ago, filter));
+                    }
+                    queue.put(end);
+                } catch (InterruptedException ex) {
+                    Log.i(Helper.TAG, folder.name + " fetch cancelled");
                 } catch (Throwable ex) {
-                    Log.e(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
-                    reportError(account.name, folder.name, ex);
+                    SyncBatch error = new SyncBatch();
+                    error.error = ex;
+                    try {
+                        queue.put(error);
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            }
+        });
 
-                    db.folder().setFolderError(folder.id, Helper.formatThrowable(ex));
+        // Add/update local messages
+        Long[] ids = new Long[imessages.length];
+        Log.i(Helper.TAG, folder.name + " add=" + imessages.length);
+        try {
+            while (true) {
+                if (!state.running) {
+                    return null;
+                }
+
+                SyncBatch batch;
+                try {
+                    batch = queue.poll(1, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    return null;
+                }
+                if (batch == null) {
+                    continue;
+                }
+                if (batch == end) {
+                    break;
+                }
+
+                if (batch.error != null) {
+                    if (batch.error instanceof MessagingException) {
+                        throw (MessagingException) batch.error;
+                    } else if (batch.error instanceof IOException) {
+                        throw (IOException) batch.error;
+                    } else if (batch.error instanceof RuntimeException) {
+                        throw (RuntimeException) batch.error;
+                    } else {
+                        throw new MessagingException(batch.error.toString());
+                    }
+                }
+
+                storeBatch(folder, ifolder, batch, ids);
+
+                pacer.pace();
+            }
+        } finally {
+            producer.cancel(true);
+            // Release memory of fetched but not stored batches
+            for (SyncBatch batch : queue) {
+                if (batch.isub != null) {
+                    for (Message imessage : batch.isub) {
+                        ((IMAPMessage) imessage).invalidateHeaders();
+                    }
                 }
             }
+            queue.clear();
+        }
+
+        return ids;
+    }
 
-            // Delete local messages not at remote
-            Log.i(Helper.TAG, folder.name + " delete=" + uids.size());
-            for (Long uid : uids) {
-                int count = db.message().deleteMessage(folder.id, uid);
-                Log.i(Helper.TAG, folder.name + " delete local uid=" + uid + " count=" + count);
+    private SyncBatch fetchBatch(EntityFolder folder, IMAPFolder ifolder, Message[] isub, int from,
+                                 long ago, boolean filter) throws MessagingException {
+        DB db = DB.getInstance(this);
+
+        FetchProfile fp = new FetchProfile();
+        fp.add(UIDFolder.FetchProfileItem.UID);
+        fp.add(FetchProfile.Item.FLAGS);
+        fp.add(FetchProfile.Item.ENVELOPE);
+        fp.add(FetchProfile.Item.CONTENT_INFO); // body structure
+        fp.add(IMAPFolder.FetchProfileItem.HEADERS);
+        // fp.add(IMAPFolder.FetchProfileItem.MESSAGE);
+        fp.add(FetchProfile.Item.SIZE);
+        fp.add(IMAPFolder.FetchProfileItem.INTERNALDATE);
+
+        // Log.i(Helper.TAG, folder.name + " update " + from + " .. " + (from + isub.length - 1));
+
+        // Full fetch new/changed messages only
+        List<Message> full = new ArrayList<>();
+        for (Message imessage : isub) {
+            long uid = ifolder.getUID(imessage);
+            EntityMessage message = db.message().getMessageByUid(folder.id, uid, false);
+            if (message == null) {
+                full.add(imessage);
+            }
+        }
+        List<Message> skip = new ArrayList<>();
+        if (full.size() > 0) {
+            long headers = SystemClock.elapsedRealtime();
+            ifolder.fetch(full.toArray(new Message[0]), fp);
+            Log.i(Helper.TAG, folder.name + " fetched headers=" + full.size() + " "
+                + (SystemClock.elapsedRealtime() - headers) + " ms");
+
+            // Skip messages outside the synchronization window
+            if (filter) {
+                for (Message imessage : full) {
+                    Date received = imessage.getReceivedDate();
+                    if (received != null && received.getTime() < ago) {
+                        skip.add(imessage);
+                    }
+                }
             }
 
-            fp.add(FetchProfile.Item.ENVELOPE);
-            // fp.add(FetchProfile.Item.FLAGS);
-            fp.add(FetchProfile.Item.CONTENT_INFO); // body structure
-            // fp.add(UIDFolder.FetchProfileItem.UID);
-            fp.add(IMAPFolder.FetchProfileItem.HEADERS);
-            // fp.add(IMAPFolder.FetchProfileItem.MESSAGE);
-            fp.add(FetchProfile.Item.SIZE);
-            fp.add(IMAPFolder.FetchProfileItem.INTERNALDATE);
+            // Look up senders now, not while holding the database write lock
+            List<Message> added = new ArrayList<>(full);
+            added.removeAll(skip);
+            ContactCache.getInstance(this).prefetch(added);
+        }
 
-            // Add/update local messages
-            Long[] ids = new Long[imessages.length];
-            Log.i(Helper.TAG, folder.name + " add=" + imessages.length);
-            for (int i = imessages.length - 1; i >= 0; i -= SYNC_BATCH_SIZE) {
-                int from = Math.max(0, i - SYNC_BATCH_SIZE + 1);
-                // Log.i(Helper.TAG, folder.name + " update " + from + " .. " + i);
+        // Build the Message-ID filter before the first transaction needs it
+        MessageIdFilter.getInstance(this, folder.account);
 
-                Message[] isub = Arrays.copyOfRange(imessages, from, i + 1);
+        SyncBatch batch = new SyncBatch();
+        batch.from = from;
+        batch.isub = isub;
+        batch.skip = skip;
+        return batch;
+    }
 
-                // Full fetch new/changed messages only
-                List<Message> full = new ArrayList<>();
-                for (Message imessage : isub) {
-                    long uid = ifolder.getUID(imessage);
-                    EntityMessage message = db.message().getMessageByUid(folder.id, uid, false);
-                    if (message == null) {
-                        full.add(imessage);
+    private void storeBatch(EntityFolder folder, IMAPFolder ifolder, SyncBatch batch, Long[] ids)
+        throws MessagingException, IOException {
+        DB db = DB.getInstance(this);
+        Message[] isub = batch.isub;
+        List<Message> skip = batch.skip;
+        int from = batch.from;
+
+        try {
+            // Store the whole batch in one transaction
+            boolean batched = false;
+            try {
+                long wait = SystemClock.elapsedRealtime();
+                db.beginTransaction();
+                pacer.contention(SystemClock.elapsedRealtime() - wait);
+
+                for (int j = isub.length - 1; j >= 0; j--) {
+                    if (skip.contains(isub[j])) {
+                        continue;
+                    }
+                    // Expunged/deleted is detected before anything is written, keep the batch
+                    try {
+                        ids[from + j] = synchronizeMessage(this, folder, ifolder, (IMAPMessage) isub[j], false);
+                    } catch (MessageRemovedException ex) {
+                        Log.w(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
+                        ids[from + j] = null;
                     }
-                }
-                if (full.size() > 0) {
-                    long headers = SystemClock.elapsedRealtime();
-                    ifolder.fetch(full.toArray(new Message[0]), fp);
-                    Log.i(Helper.TAG, folder.name + " fetched headers=" + full.size() + " "
-                        + (SystemClock.elapsedRealtime() - headers) + " ms");
                 }
 
+                db.setTransactionSuccessful();
+                batched = true;
+            } catch (FolderClosedException ex) {
+                throw ex;
+            } catch (FolderClosedIOException ex) {
+                throw ex;
+            } catch (Throwable ex) {
+                Log.w(Helper.TAG, folder.name + " batch failed " + ex);
+            } finally {
+                db.endTransaction();
+            }
+
+            // Isolate the failing message(s)
+            if (!batched) {
                 for (int j = isub.length - 1; j >= 0; j--) {
+                    ids[from + j] = null;
+                    if (skip.contains(isub[j])) {
+                        continue;
+                    }
                     try {
                         db.beginTransaction();
                         ids[from + j] = synchronizeMessage(this, folder, ifolder, (IMAPMessage) isub[j], false);
                         db.setTransactionSuccessful();
-                        Thread.sleep(20);
                     } catch (MessageRemovedException ex) {
                         Log.w(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
+                        ids[from + j] = null;
                     } catch (FolderClosedException ex) {
                         throw ex;
                     } catch (FolderClosedIOException ex) {
                         throw ex;
                     } catch (Throwable ex) {
                         Log.e(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
+                        ids[from + j] = null;
                     } finally {
                         db.endTransaction();
-                        // Reduce memory usage
-                        ((IMAPMessage) isub[j]).invalidateHeaders();
                     }
                 }
-
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException ignored) {
-                }
             }
+        } finally {
+            // Reduce memory usage
+            for (Message imessage : isub) {
+                ((IMAPMessage) imessage).invalidateHeaders();
+            }
+        }
+    }
 
-            db.folder().setFolderState(folder.id, "downloading");
-
-            // fp.add(IMAPFolder.FetchProfileItem.MESSAGE);
+    private void downloadBatches(EntityFolder folder, IMAPFolder ifolder, Message[] imessages,
+                                 Long[] ids, ServiceState state) throws MessagingException, IOException {
+        DB db = DB.getInstance(this);
+        db.folder().setFolderState(folder.id, "downloading");
 
-            // Download messages/attachments
-            Log.i(Helper.TAG, folder.name + " download=" + imessages.length);
-            for (int i = imessages.length - 1; i >= 0; i -= DOWNLOAD_BATCH_SIZE) {
-                int from = Math.max(0, i - DOWNLOAD_BATCH_SIZE + 1);
-                // Log.i(Helper.TAG, folder.name + " download " + from + " .. " + i);
+        // fp.add(IMAPFolder.FetchProfileItem.MESSAGE);
 
-                Message[] isub = Arrays.copyOfRange(imessages, from, i + 1);
-                // Fetch on demand
+        // Download messages/attachments, newest first, but messages shown in the list before others
+        Log.i(Helper.TAG, folder.name + " download=" + imessages.length);
+        boolean[] done = new boolean[imessages.length];
+        Map<Long, Integer> index = new HashMap<>(); // message id: index
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] != null) {
+                index.put(ids[i], i);
+            }
+        }
+        int count = 0;
+        try {
+            int i = imessages.length - 1;
+            while (i >= 0) {
+                if (!state.running) {
+                    return;
+                }
 
-                for (int j = isub.length - 1; j >= 0; j--) {
-                    try {
-                        // Log.i(Helper.TAG, folder.name + " download index=" + (from + j) + " id="
-                        // + ids[from + j]);
-                        if (ids[from + j] != null) {
-                            downloadMessage(this, folder, ifolder, (IMAPMessage) isub[j], ids[from + j]);
-                            Thread.sleep(20);
-                        }
-                    } catch (FolderClosedException ex) {
-                        throw ex;
-                    } catch (FolderClosedIOException ex) {
-                        throw ex;
-                    } catch (Throwable ex) {
-                        Log.e(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
-                    } finally {
-                        // Free memory
-                        ((IMAPMessage) isub[j]).invalidateHeaders();
+                // Shown messages yield to opened messages only
+                int next = -1;
+                for (long id : downloads.getVisible()) {
+                    Integer v = index.get(id);
+                    if (v != null && !done[v] && v > next) {
+                        next = v;
                     }
                 }
+                if (next < 0) {
+                    while (i >= 0 && done[i]) {
+                        i--;
+                    }
+                    if (i < 0) {
+                        break;
+                    }
+                    next = i;
+                    downloads.enter(DownloadScheduler.PRIORITY_PREFETCH);
+                } else {
+                    downloads.enter(DownloadScheduler.PRIORITY_VISIBLE);
+                }
+                done[next] = true;
 
+                downloads.yield();
                 try {
-                    Thread.sleep(100);
-                } catch (InterruptedException ignored) {
+                    if (ids[next] != null) {
+                        downloadMessage(this, folder, ifolder, (IMAPMessage) imessages[next], ids[next]);
+                    }
+                } catch (FolderClosedException ex) {
+                    throw ex;
+                } catch (FolderClosedIOException ex) {
+                    throw ex;
+                } catch (Throwable ex) {
+                    Log.e(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
+                } finally {
+                    // Free memory
+                    ((IMAPMessage) imessages[next]).invalidateHeaders();
                 }
-            }
 
+                if (++count % DOWNLOAD_BATCH_SIZE == 0) {
+                    pacer.pace();
+                }
+            }
         } finally {
-            Log.v(Helper.TAG, folder.name + " end sync");
-            db.folder().setFolderState(folder.id, ifolder.isOpen() ? "connected" : "disconnected");
+            downloads.exit();
         }
     }
 
@@ -1891,9 +2849,15 @@ public class ServiceSynchronize extends LifecycleService {
             String[] refs = helper.getReferences();
             String reference =
                 (refs.length == 1 && refs[0].indexOf(BuildConfig.APPLICATION_ID) > 0 ? refs[0] : msgid);
-            Log.i(Helper.TAG, "Searching for " + msgid + " / " + reference);
-            for (EntityMessage dup : db.message().getMessageByMsgId(folder.account, msgid, reference,
-                found)) {
+            MessageIdFilter filter = MessageIdFilter.getInstance(context, folder.account);
+            List<EntityMessage> dups;
+            if (filter.mightContain(msgid) || filter.mightContain(reference)) {
+                Log.i(Helper.TAG, "Searching for " + msgid + " / " + reference);
+                dups = db.message().getMessageByMsgId(folder.account, msgid, reference, found);
+            } else {
+                dups = new ArrayList<>();
+            }
+            for (EntityMessage dup : dups) {
                 EntityFolder dfolder = db.folder().getFolder(dup.folder);
                 boolean outbox = EntityFolder.OUTBOX.equals(dfolder.type);
                 Log.i(Helper.TAG,
@@ -1902,7 +2866,7 @@ public class ServiceSynchronize extends LifecycleService {
                         + " thread=" + dup.thread);
 
                 if (dup.folder.equals(folder.id) || outbox) {
-                    String thread = helper.getThreadId(uid);
+                    String thread = MessageThreader.getThread(db, folder.account, helper, uid);
                     Log.i(Helper.TAG, folder.name + " found as id=" + dup.id + "/" + uid + " msgid=" + msgid
                         + " thread=" + thread);
                     dup.folder = folder.id;
@@ -1911,6 +2875,7 @@ public class ServiceSynchronize extends LifecycleService {
                     dup.thread = thread;
                     dup.error = null;
                     db.message().updateMessage(dup);
+                    filter.add(msgid);
                     message = dup;
                 }
             }
@@ -1932,7 +2897,7 @@ public class ServiceSynchronize extends LifecycleService {
             message.references = TextUtils.join(" ", helper.getReferences());
             message.inreplyto = helper.getInReplyTo();
             message.deliveredto = helper.getDeliveredTo();
-            message.thread = helper.getThreadId(uid);
+            message.thread = MessageThreader.getThread(db, folder.account, helper, uid);
             message.from = helper.getFrom();
             message.to = helper.getTo();
             message.cc = helper.getCc();
@@ -1951,49 +2916,25 @@ public class ServiceSynchronize extends LifecycleService {
             message.ui_found = found;
             message.ui_ignored = false;
 
-            if (ContextCompat.checkSelfPermission(context,
-                Manifest.permission.READ_CONTACTS) == PackageManager.PERMISSION_GRANTED) {
-                try {
-                    if (message.from != null) {
-                        for (int i = 0; i < message.from.length; i++) {
-                            String email = ((InternetAddress) message.from[i]).getAddress();
-                            Cursor cursor = null;
-                            try {
-                                ContentResolver resolver = context.getContentResolver();
-                                cursor = resolver.query(ContactsContract.CommonDataKinds.Email.CONTENT_URI,
-                                    new String[] {ContactsContract.CommonDataKinds.Photo.CONTACT_ID,
-                                        ContactsContract.Contacts.DISPLAY_NAME},
-                                    ContactsContract.CommonDataKinds.Email.ADDRESS + " = ?", new String[] {email},
-                                    null);
-                                if (cursor != null && cursor.moveToNext()) {
-                                    int colContactId =
-                                        cursor.getColumnIndex(ContactsContract.CommonDataKinds.Photo.CONTACT_ID);
-                                    int colDisplayName =
-                                        cursor.getColumnIndex(ContactsContract.Contacts.DISPLAY_NAME);
-                                    long contactId = cursor.getLong(colContactId);
-                                    String displayName = cursor.getString(colDisplayName);
-
-                                    Uri uri =
-                                        ContentUris.withAppendedId(ContactsContract.Contacts.CONTENT_URI, contactId);
-                                    message.avatar = uri.toString();
-
-                                    if (!TextUtils.isEmpty(displayName)) {
-                                        ((InternetAddress) message.from[i]).setPersonal(displayName);
-                                    }
-                                }
-                            } finally {
-                                if (cursor != null) {
-                                    cursor.close();
-                                }
-                            }
+            // Senders are usually looked up already, before the transaction
+            if (message.from != null) {
+                ContactCache contacts = ContactCache.getInstance(context);
+                for (int i = 0; i < message.from.length; i++) {
+                    ContactCache.Contact contact =
+                        contacts.lookup(((InternetAddress) message.from[i]).getAddress());
+                    if (contact != null) {
+                        Uri uri = ContentUris.withAppendedId(ContactsContract.Contacts.CONTENT_URI, contact.id);
+                        message.avatar = uri.toString();
+
+                        if (!TextUtils.isEmpty(contact.name)) {
+                            ((InternetAddress) message.from[i]).setPersonal(contact.name);
                         }
                     }
-                } catch (Throwable ex) {
-                    Log.e(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
                 }
             }
 
             message.id = db.message().insertMessage(message);
+            MessageIdFilter.getInstance(context, folder.account).add(message.msgid);
 
             Log.i(Helper.TAG, folder.name + " added id=" + message.id + " uid=" + message.uid);
 
@@ -2077,7 +3018,6 @@ public class ServiceSynchronize extends LifecycleService {
             fp.add(FetchProfile.Item.CONTENT_INFO); // body structure
             fp.add(UIDFolder.FetchProfileItem.UID);
             fp.add(IMAPFolder.FetchProfileItem.HEADERS);
-            fp.add(IMAPFolder.FetchProfileItem.MESSAGE);
             fp.add(FetchProfile.Item.SIZE);
             fp.add(IMAPFolder.FetchProfileItem.INTERNALDATE);
             ifolder.fetch(new Message[] {imessage}, fp);
@@ -2085,7 +3025,9 @@ public class ServiceSynchronize extends LifecycleService {
 
         if (!message.content) {
             if (!metered || (message.size != null && message.size < MESSAGE_AUTO_DOWNLOAD_SIZE)) {
-                message.write(context, helper.getHtml());
+                // Body parts are fetched by section, not the whole message with its attachments
+                helper.writeHtml(EntityMessage.getFile(context, message.id));
+                SearchIndex.setText(db, message.id, EntityMessage.getFile(context, message.id));
                 db.message().setMessageContent(message.id, true);
                 Log.i(Helper.TAG,
                     folder.name + " downloaded message id=" + message.id + " size=" + message.size);
@@ -2098,11 +3040,13 @@ public class ServiceSynchronize extends LifecycleService {
             if (!attachment.available) {
                 if (!metered
                     || (attachment.size != null && attachment.size < ATTACHMENT_AUTO_DOWNLOAD_SIZE)) {
-                    if (iattachments == null) {
-                        iattachments = helper.getAttachments();
+                    if (attachment.section == null) {
+                        if (iattachments == null) {
+                            iattachments = helper.getAttachments();
+                        }
+                        attachment.part = iattachments.get(i).part;
                     }
-                    attachment.part = iattachments.get(i).part;
-                    attachment.download(context, db);
+                    attachment.download(context, db, imessage);
                     Log.i(Helper.TAG, folder.name + " downloaded message id=" + message.id + " attachment="
                         + attachment.name + " size=" + message.size);
                 }
@@ -2110,6 +3054,185 @@ public class ServiceSynchronize extends LifecycleService {
         }
     }
 
+    // Sends of different identities do not wait for each other, sends of one identity stay ordered
+    private class OutboxDispatcher {
+        private int active = 0;
+        private EntityFolder outbox = null;
+        private final Map<Long, OutboxLane> lanes = new HashMap<>(); // identity id: lane
+        private final Set<OutboxLane> running = new HashSet<>();
+
+        private final ScheduledExecutorService executor =
+            Executors.newScheduledThreadPool(OUTBOX_THREADS, Helper.backgroundThreadFactory);
+
+        void dispatch(EntityFolder outbox) {
+            DB db = DB.getInstance(ServiceSynchronize.this);
+            EntityOperation.compact(db, outbox.id);
+
+            Set<Long> identities = new HashSet<>();
+            for (EntityOperation op : db.operation().getOperationsByFolder(outbox.id)) {
+                identities.add(getIdentity(db, op));
+            }
+
+            synchronized (this) {
+                this.outbox = outbox;
+                for (long identity : identities) {
+                    OutboxLane lane = lanes.get(identity);
+                    if (lane == null) {
+                        lane = new OutboxLane(identity);
+                        lanes.put(identity, lane);
+                    }
+                    if (running.contains(lane)) {
+                        lane.again = true;
+                    } else {
+                        // New work does not wait for the retry timer
+                        if (lane.future != null) {
+                            lane.future.cancel(false);
+                        }
+                        lane.retry = 0;
+                        lane.schedule();
+                    }
+                }
+            }
+        }
+
+        synchronized void clear() {
+            for (OutboxLane lane : lanes.values()) {
+                if (lane.future != null) {
+                    lane.future.cancel(false);
+                }
+            }
+            lanes.clear();
+
+            // Let sends in progress finish, the SMTP connections are closed next
+            while (!running.isEmpty()) {
+                try {
+                    Log.i(Helper.TAG, "Outbox waiting lanes=" + running.size());
+                    wait();
+                } catch (InterruptedException ex) {
+                    Log.w(Helper.TAG, "Outbox clear " + ex.toString());
+                    break;
+                }
+            }
+        }
+
+        void shutdown() {
+            executor.shutdownNow();
+        }
+
+        private long getIdentity(DB db, EntityOperation op) {
+            EntityMessage message = (op.message == null ? null : db.message().getMessage(op.message));
+            return (message == null || message.identity == null ? -1 : message.identity);
+        }
+
+        private class OutboxLane implements Runnable {
+            private final long identity;
+            private ScheduledFuture<?> future = null;
+            private boolean again = false;
+            private int failures = 0;
+            private long retry = 0;
+
+            OutboxLane(long identity) {
+                this.identity = identity;
+            }
+
+            // Must be called with the dispatcher lock held
+            private void schedule() {
+                long delay = Math.max(0, retry - SystemClock.elapsedRealtime());
+                Log.i(Helper.TAG, "Outbox identity=" + identity + " delay=" + delay + " failures=" + failures);
+                future = executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+            }
+
+            @Override
+            public void run() {
+                PowerManager powerManager = CompatibilityHelper.getPowerManager(ServiceSynchronize.this);
+                PowerManager.WakeLock wl = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
+                    BuildConfig.APPLICATION_ID + ":outbox." + identity);
+
+                EntityFolder outbox;
+                synchronized (OutboxDispatcher.this) {
+                    // Lanes removed when stopping do not start anymore
+                    if (lanes.get(identity) != this) {
+                        return;
+                    }
+                    // A cancelled timer may have fired already, the lane runs once at a time
+                    if (running.contains(this)) {
+                        again = true;
+                        return;
+                    }
+                    running.add(this);
+                    outbox = OutboxDispatcher.this.outbox;
+                    again = false;
+                    if (active++ == 0) {
+                        DB.getInstance(ServiceSynchronize.this).folder().setFolderState(outbox.id, "syncing");
+                    }
+                }
+
+                boolean failed = false;
+                try {
+                    wl.acquire();
+                    DB db = DB.getInstance(ServiceSynchronize.this);
+                    try {
+                        Log.i(Helper.TAG, outbox.name + " start operations identity=" + identity);
+
+                        List<EntityOperation> ops = new ArrayList<>();
+                        for (EntityOperation op : db.operation().getOperationsByFolder(outbox.id)) {
+                            if (getIdentity(db, op) == identity) {
+                                ops.add(op);
+                            }
+                        }
+                        processOperations(outbox, ops, null, null, null);
+
+                        // Recoverable errors leave the operation queued
+                        for (EntityOperation op : ops) {
+                            if (db.operation().getOperation(op.id) != null) {
+                                failed = true;
+                                break;
+                            }
+                        }
+
+                        db.folder().setFolderError(outbox.id, null);
+                    } catch (Throwable ex) {
+                        Log.e(Helper.TAG, outbox.name + " " + ex + "\n" + Log.getStackTraceString(ex));
+                        reportError(null, outbox.name, ex);
+
+                        db.folder().setFolderError(outbox.id, Helper.formatThrowable(ex));
+                        failed = true;
+                    } finally {
+                        Log.i(Helper.TAG, outbox.name + " end operations identity=" + identity);
+                    }
+                } finally {
+                    synchronized (OutboxDispatcher.this) {
+                        if (--active == 0) {
+                            DB.getInstance(ServiceSynchronize.this).folder().setFolderState(outbox.id, null);
+                        }
+
+                        running.remove(this);
+                        OutboxDispatcher.this.notifyAll();
+
+                        future = null;
+                        if (failed) {
+                            failures++;
+                            retry = SystemClock.elapsedRealtime()
+                                + Math.min(OUTBOX_RETRY_START << (failures - 1), OUTBOX_RETRY_MAX);
+                        } else {
+                            failures = 0;
+                            retry = 0;
+                        }
+
+                        // Lanes removed when stopping are not rescheduled
+                        if (lanes.get(identity) == this
+                            && (again || (failed && failures < OUTBOX_RETRY_ATTEMPTS))) {
+                            schedule();
+                        }
+                    }
+
+                    wl.release();
+                    EntityLog.log(ServiceSynchronize.this, "Outbox wake lock=" + wl.isHeld());
+                }
+            }
+        }
+    }
+
     private class ServiceManager extends ConnectivityManager.NetworkCallback {
         private ServiceState state;
         private boolean running = false;
@@ -2260,6 +3383,7 @@ public class ServiceSynchronize extends LifecycleService {
 
                         // Stop monitoring outbox
                         lbm.unregisterReceiver(outboxReceiver);
+                        outboxDispatcher.clear();
                         Log.i(Helper.TAG, outbox.name + " unlisten operations");
                         db.folder().setFolderState(outbox.id, null);
 
@@ -2292,6 +3416,8 @@ public class ServiceSynchronize extends LifecycleService {
 
                 EntityLog.log(ServiceSynchronize.this, "Main stopped");
 
+                smtpPool.clear();
+
                 state = null;
             } finally {
                 wl.release();
@@ -2299,6 +3425,21 @@ public class ServiceSynchronize extends LifecycleService {
             }
         }
 
+        // Runs after a pending stop, the service threads are not needed anymore
+        private void destroy() {
+            lifecycle.submit(new Runnable() {
+                @Override
+                public void run() {
+                    Log.i(Helper.TAG, "Service shutdown");
+                    fetcher.shutdownNow();
+                    outboxDispatcher.shutdown();
+                    scheduler.shutdown();
+                    executor.shutdownNow();
+                }
+            });
+            lifecycle.shutdown();
+        }
+
         private void queue_reload() {
             if (running) {
                 lifecycle.submit(new Runnable() {
@@ -2344,30 +3485,10 @@ public class ServiceSynchronize extends LifecycleService {
                 executor.submit(new Runnable() {
                     @Override
                     public void run() {
-                        PowerManager powerManager = CompatibilityHelper.getPowerManager(context);
-                        PowerManager.WakeLock wl = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
-                            BuildConfig.APPLICATION_ID + ":outbox");
-
                         try {
-                            wl.acquire();
-                            DB db = DB.getInstance(context);
-                            try {
-                                Log.i(Helper.TAG, outbox.name + " start operations");
-                                db.folder().setFolderState(outbox.id, "syncing");
-                                processOperations(outbox, null, null, null);
-                                db.folder().setFolderError(outbox.id, null);
-                            } catch (Throwable ex) {
-                                Log.e(Helper.TAG, outbox.name + " " + ex + "\n" + Log.getStackTraceString(ex));
-                                reportError(null, outbox.name, ex);
-
-                                db.folder().setFolderError(outbox.id, Helper.formatThrowable(ex));
-                            } finally {
-                                Log.i(Helper.TAG, outbox.name + " end operations");
-                                db.folder().setFolderState(outbox.id, null);
-                            }
-                        } finally {
-                            wl.release();
-                            EntityLog.log(ServiceSynchronize.this, "Outbox wake lock=" + wl.isHeld());
+                            outboxDispatcher.dispatch(outbox);
+                        } catch (Throwable ex) {
+                            Log.e(Helper.TAG, outbox.name + " " + ex + "\n" + Log.getStackTraceString(ex));
                         }
                     }
                 });
@@ -0,0 +1,145 @@
+package org.dystopia.email;
+
+/*
+    This file is part of SimpleEmail.
+    Copyright 2018-2020, Distopico (dystopia project) <distopico@riseup.net> and contributors
+
+    This program  is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program  is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.Transport;
+
+/**
+ * Keeps the authenticated SMTP connection of an identity open for a short while,
+ * so consecutive messages of the same identity are sent without reconnecting.
+ * A leased connection is used by one sender only until it is released.
+ */
+public class SmtpPool {
+    private final Map<Long, Entry> idle = new HashMap<>(); // identity id: connection
+
+    private final ScheduledExecutorService evictor =
+        Executors.newSingleThreadScheduledExecutor(Helper.backgroundThreadFactory);
+
+    private static final long IDLE_TIMEOUT = 60 * 1000L; // milliseconds
+
+    private static class Entry {
+        String key;
+        Transport transport;
+        long released;
+    }
+
+    // Returns a connected transport or null when a new one needs to be connected
+    Transport lease(EntityIdentity ident) {
+        Entry entry;
+        synchronized (this) {
+            entry = idle.remove(ident.id);
+        }
+        if (entry == null) {
+            return null;
+        }
+
+        if (!entry.key.equals(getKey(ident))
+            || entry.released + IDLE_TIMEOUT < System.currentTimeMillis()) {
+            close(entry.transport);
+            return null;
+        }
+
+        // Sends NOOP to check if the server did not drop the connection
+        if (!entry.transport.isConnected()) {
+            Log.i(Helper.TAG, "SMTP " + ident.host + "/" + ident.user + " connection lost");
+            close(entry.transport);
+            return null;
+        }
+
+        Log.i(Helper.TAG, "SMTP " + ident.host + "/" + ident.user + " reusing connection");
+        return entry.transport;
+    }
+
+    void release(EntityIdentity ident, Transport transport) {
+        Entry entry = new Entry();
+        entry.key = getKey(ident);
+        entry.transport = transport;
+        entry.released = System.currentTimeMillis();
+
+        Entry previous;
+        synchronized (this) {
+            previous = idle.put(ident.id, entry);
+        }
+        if (previous != null) {
+            close(previous.transport);
+        }
+
+        evictor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                evict();
+            }
+        }, IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    void clear() {
+        List<Entry> entries;
+        synchronized (this) {
+            entries = new ArrayList<>(idle.values());
+            idle.clear();
+        }
+        for (Entry entry : entries) {
+            close(entry.transport);
+        }
+    }
+
+    private void evict() {
+        List<Entry> expired = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Iterator<Entry> it = idle.values().iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.released + IDLE_TIMEOUT <= now) {
+                    expired.add(entry);
+                    it.remove();
+                }
+            }
+        }
+        for (Entry entry : expired) {
+            close(entry.transport);
+        }
+    }
+
+    static void close(Transport transport) {
+        try {
+            transport.close();
+        } catch (MessagingException ex) {
+            Log.w(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
+        }
+    }
+
+    // Changed settings require a new connection
+    private static String getKey(EntityIdentity ident) {
+        return ident.host + ":" + ident.port + ":" + ident.starttls + ":" + ident.insecure
+            + ":" + ident.auth_type + ":" + ident.user + ":" + ident.password;
+    }
+}
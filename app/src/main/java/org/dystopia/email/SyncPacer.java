@@ -0,0 +1,141 @@
+package org.dystopia.email;
+
+/*
+    This file is part of SimpleEmail.
+    Copyright 2018-2020, Distopico (dystopia project) <distopico@riseup.net> and contributors
+
+    This program  is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program  is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Choreographer;
+
+/**
+ * Throttles synchronization only when it hurts: when writers wait for the database lock or
+ * when the main thread drops frames. Otherwise batches are processed back to back.
+ */
+public class SyncPacer {
+    private static int resumed = 0; // activities in the foreground, main thread only
+
+    private int active = 0;
+    private int frames = 0;
+    private long lastFrame = 0; // nanoseconds
+    private volatile long frameLag = 0; // milliseconds, moving average
+    private volatile long contention = 0; // milliseconds, moving average
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private static final long FRAME_INTERVAL = 16; // milliseconds
+    private static final long MAX_DELAY = 500; // milliseconds
+    private static final int SAMPLE_FRAMES = 10;
+    private static final long SAMPLE_INTERVAL = 1000; // milliseconds
+
+    // Frame timing is sampled a few frames at a time, and only when an activity is visible
+    private final Runnable sampler = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (SyncPacer.this) {
+                if (active == 0) {
+                    return;
+                }
+
+                if (resumed == 0) {
+                    frameLag = 0;
+                    handler.postDelayed(this, SAMPLE_INTERVAL);
+                    return;
+                }
+
+                frames = 0;
+                lastFrame = 0;
+            }
+            Choreographer.getInstance().postFrameCallback(monitor);
+        }
+    };
+
+    private final Choreographer.FrameCallback monitor = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            synchronized (SyncPacer.this) {
+                if (active == 0) {
+                    return;
+                }
+
+                if (lastFrame != 0) {
+                    long lag = (frameTimeNanos - lastFrame) / 1000000L - FRAME_INTERVAL;
+                    frameLag = average(frameLag, Math.min(MAX_DELAY, Math.max(0, lag)));
+                }
+                lastFrame = frameTimeNanos;
+
+                if (++frames < SAMPLE_FRAMES) {
+                    Choreographer.getInstance().postFrameCallback(this);
+                    return;
+                }
+            }
+            handler.postDelayed(sampler, SAMPLE_INTERVAL);
+        }
+    };
+
+    static void resumed() {
+        resumed++;
+    }
+
+    static void paused() {
+        resumed--;
+    }
+
+    // Frame timing is only monitored while synchronizing to not wake up the main thread needlessly
+    synchronized void start() {
+        if (active++ == 0) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    handler.removeCallbacks(sampler);
+                    Choreographer.getInstance().removeFrameCallback(monitor);
+                    sampler.run();
+                }
+            });
+        }
+    }
+
+    synchronized void stop() {
+        if (active > 0) {
+            active--;
+        }
+        if (active == 0) {
+            frameLag = 0;
+            contention = 0;
+        }
+    }
+
+    void contention(long wait) {
+        contention = average(contention, wait);
+    }
+
+    void pace() {
+        long delay = Math.min(MAX_DELAY, frameLag + contention);
+        if (delay > 0) {
+            Log.v(Helper.TAG, "Pacing " + delay + " ms lag=" + frameLag + " contention=" + contention);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+
+    private static long average(long current, long sample) {
+        return (current * 3 + sample) / 4;
+    }
+}
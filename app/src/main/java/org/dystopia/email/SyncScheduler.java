@@ -0,0 +1,270 @@
+package org.dystopia.email;
+
+/*
+    This file is part of SimpleEmail.
+    Copyright 2018-2020, Distopico (dystopia project) <distopico@riseup.net> and contributors
+
+    This program  is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program  is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs folder synchronization jobs of all accounts on a bounded number of threads.
+ * Jobs are ordered by folder priority first, then round robin between accounts,
+ * so one account with many folders cannot starve the others.
+ * Folder connections of all accounts are kept within a budget as well.
+ */
+public class SyncScheduler {
+    static final int PRIORITY_INBOX = 0;
+    static final int PRIORITY_VISIBLE = 1;
+    static final int PRIORITY_DEFAULT = 2;
+    static final int PRIORITY_ARCHIVE = 3;
+
+    private final int threads;
+    private final int budget;
+
+    private long sequence = 0;
+    private long round = 0; // round of the last started job
+    private final Map<Long, Long> rounds = new HashMap<>(); // account: next round
+
+    // Jobs are handed to the executor only when a thread is free,
+    // so waiting jobs stay here in priority order
+    private final PriorityQueue<Job> queue = new PriorityQueue<>();
+    private int running = 0;
+
+    private int idlers = 0;
+    private int connections = 0;
+    private int ondemand = 0; // connections opened for a single operation
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(Helper.backgroundThreadFactory);
+
+    SyncScheduler(int threads, int connections) {
+        this.threads = threads;
+        this.budget = connections;
+    }
+
+    static int priority(EntityFolder folder) {
+        if (EntityFolder.INBOX.equals(folder.type)) {
+            return PRIORITY_INBOX;
+        } else if (folder.unified) {
+            return PRIORITY_VISIBLE;
+        } else if (EntityFolder.ARCHIVE.equals(folder.type)
+            || EntityFolder.TRASH.equals(folder.type)
+            || EntityFolder.JUNK.equals(folder.type)) {
+            return PRIORITY_ARCHIVE;
+        } else {
+            return PRIORITY_DEFAULT;
+        }
+    }
+
+    Job schedule(EntityFolder folder, String name, Runnable runnable) {
+        Job job;
+        synchronized (this) {
+            long account = (folder.account == null ? -1 : folder.account);
+            Long next = rounds.get(account);
+            long r = Math.max(next == null ? 0 : next, round);
+            rounds.put(account, r + 1);
+            job = new Job(name, priority(folder), r, sequence++, runnable);
+            queue.add(job);
+            Log.i(Helper.TAG, "Scheduled " + name + " priority=" + job.priority + " round=" + job.round
+                + " queued=" + queue.size());
+            dispatch();
+        }
+        return job;
+    }
+
+    private void dispatch() {
+        while (running < threads && !queue.isEmpty()) {
+            Job job = queue.poll();
+            round = Math.max(round, job.round);
+            running++;
+            executor.execute(job);
+        }
+    }
+
+    private synchronized void finished() {
+        running--;
+        dispatch();
+    }
+
+    void shutdown() {
+        synchronized (this) {
+            queue.clear();
+        }
+        executor.shutdownNow();
+    }
+
+    // Long running IDLE is not a pool job, but is counted for the statistics
+
+    synchronized void idleStarted() {
+        idlers++;
+    }
+
+    synchronized void idleStopped() {
+        idlers--;
+    }
+
+    // Folders kept open take a connection only if the budget allows it,
+    // except the first folder of an account, which is always needed
+
+    synchronized void connectionOpened() {
+        connections++;
+    }
+
+    synchronized boolean tryConnection() {
+        if (connections >= budget) {
+            return false;
+        }
+        connections++;
+        return true;
+    }
+
+    // Folders opened for a single operation wait for a free connection,
+    // but one of them can always go ahead, so operations cannot get stuck
+    synchronized void acquireConnection() throws InterruptedException {
+        while (connections >= budget && ondemand > 0) {
+            wait();
+        }
+        connections++;
+        ondemand++;
+    }
+
+    synchronized void releaseConnection() {
+        ondemand--;
+        connectionClosed();
+    }
+
+    synchronized void connectionClosed() {
+        connections--;
+        notifyAll();
+    }
+
+    synchronized int getThreadCount() {
+        return running + idlers;
+    }
+
+    synchronized int getConnectionCount() {
+        return connections;
+    }
+
+    synchronized int getQueuedCount() {
+        return queue.size();
+    }
+
+    class Job implements Runnable, Comparable<Job> {
+        private final String name;
+        private final int priority;
+        private final long round;
+        private final long sequence;
+        private final Runnable runnable;
+
+        private Thread thread = null;
+        private boolean cancelled = false;
+        private boolean done = false;
+
+        Job(String name, int priority, long round, long sequence, Runnable runnable) {
+            this.name = name;
+            this.priority = priority;
+            this.round = round;
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            try {
+                synchronized (this) {
+                    if (cancelled) {
+                        done = true;
+                        notifyAll();
+                        return;
+                    }
+                    thread = Thread.currentThread();
+                }
+
+                String original = thread.getName();
+                try {
+                    thread.setName(name);
+                    runnable.run();
+                } finally {
+                    thread.setName(original);
+                    synchronized (this) {
+                        thread = null;
+                        done = true;
+                        notifyAll();
+                    }
+                    // Clear a pending interrupt before the thread is reused
+                    Thread.interrupted();
+                }
+            } finally {
+                finished();
+            }
+        }
+
+        void cancel() {
+            synchronized (this) {
+                cancelled = true;
+                if (thread != null) {
+                    thread.interrupt();
+                }
+            }
+            boolean removed;
+            synchronized (SyncScheduler.this) {
+                removed = queue.remove(this);
+            }
+            if (removed) {
+                synchronized (this) {
+                    done = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        synchronized boolean isDone() {
+            return done;
+        }
+
+        void join() {
+            synchronized (this) {
+                while (!done) {
+                    try {
+                        Log.i(Helper.TAG, "Joining " + name);
+                        wait();
+                    } catch (InterruptedException ex) {
+                        Log.w(Helper.TAG, name + " join " + ex.toString());
+                    }
+                }
+                Log.i(Helper.TAG, "Joined " + name);
+            }
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (priority != other.priority) {
+                return (priority < other.priority ? -1 : 1);
+            }
+            if (round != other.round) {
+                return (round < other.round ? -1 : 1);
+            }
+            return (sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1));
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package org.dystopia.email;
+
+/*
+    This file is part of SimpleEmail.
+    Copyright 2018-2020, Distopico (dystopia project) <distopico@riseup.net> and contributors
+
+    This program  is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program  is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.Arrays;
+
+/**
+ * Local UIDs of a folder which are not at the remote anymore, computed in a single pass over
+ * both sorted sets without boxing.
+ */
+public class UidDiff {
+    private UidDiff() {
+    }
+
+    static long[] removed(long[] local, long[] remote) {
+        long[] l = sorted(local);
+        long[] r = sorted(remote);
+
+        long[] removed = new long[l.length];
+        int d = 0;
+
+        int j = 0;
+        for (long uid : l) {
+            while (j < r.length && r[j] < uid) {
+                j++;
+            }
+            if (j == r.length || r[j] != uid) {
+                removed[d++] = uid;
+            }
+        }
+
+        return Arrays.copyOf(removed, d);
+    }
+
+    private static long[] sorted(long[] uids) {
+        long[] result = uids.clone();
+        Arrays.sort(result);
+
+        // Remove duplicates
+        int n = 0;
+        for (int i = 0; i < result.length; i++) {
+            if (n == 0 || result[i] != result[n - 1]) {
+                result[n++] = result[i];
+            }
+        }
+        return (n == result.length ? result : Arrays.copyOf(result, n));
+    }
+}
@@ -26,11 +26,13 @@ import androidx.lifecycle.ViewModel;
 
 import com.sun.mail.imap.IMAPFolder;
 import com.sun.mail.imap.IMAPMessage;
-import com.sun.mail.imap.IMAPStore;
 import com.sun.mail.util.FolderClosedIOException;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Properties;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.mail.FetchProfile;
 import javax.mail.Folder;
@@ -38,13 +40,7 @@ import javax.mail.FolderClosedException;
 import javax.mail.Message;
 import javax.mail.MessageRemovedException;
 import javax.mail.MessagingException;
-import javax.mail.Session;
 import javax.mail.UIDFolder;
-import javax.mail.search.BodyTerm;
-import javax.mail.search.FromStringTerm;
-import javax.mail.search.OrTerm;
-import javax.mail.search.RecipientStringTerm;
-import javax.mail.search.SubjectTerm;
 
 public class ViewModelBrowse extends ViewModel {
     private Context context;
@@ -52,27 +48,30 @@ public class ViewModelBrowse extends ViewModel {
     private String search;
     private int pageSize;
 
-    private IMAPStore istore = null;
+    private ImapPool.Lease lease = null;
     private IMAPFolder ifolder = null;
-    private Message[] imessages = null;
+    private ImapHelper.UidList uids = null;
 
-    private int index = -1;
+    private static ExecutorService executor =
+        Executors.newSingleThreadExecutor(Helper.backgroundThreadFactory);
 
     void set(Context context, long folder, String search, int pageSize) {
+        // The open folder belongs to the previous folder
+        if (folder != this.fid) {
+            release();
+        }
+
         this.context = context;
         this.fid = folder;
         this.search = search;
         this.pageSize = pageSize;
-
-        this.index = -1;
+        this.uids = null;
     }
 
     @Override
     protected void onCleared() {
+        release();
         context = null;
-        istore = null;
-        ifolder = null;
-        imessages = null;
     }
 
     Context getContext() {
@@ -88,42 +87,49 @@ public class ViewModelBrowse extends ViewModel {
         }
         EntityAccount account = db.account().getAccount(folder.account);
 
-        if (imessages == null) {
-            Properties props = MessageHelper.getSessionProperties(account.auth_type, account.insecure);
-            props.setProperty("mail.imap.throwsearchexception", "true");
-            Session isession = Session.getInstance(props, null);
-
-            Log.i(Helper.TAG, "Boundary connecting account=" + account.name);
-            istore = (IMAPStore) isession.getStore(account.starttls ? "imap" : "imaps");
-            Helper.connect(context, istore, account);
-
-            Log.i(Helper.TAG, "Boundary opening folder=" + folder.name);
-            ifolder = (IMAPFolder) istore.getFolder(folder.name);
-            ifolder.open(Folder.READ_WRITE);
-
-            Log.i(Helper.TAG, "Boundary searching=" + search);
-            if (search == null) {
-                imessages = ifolder.getMessages();
-            } else {
-                imessages =
-                    ifolder.search(
-                        new OrTerm(
-                            new OrTerm(
-                                new FromStringTerm(search),
-                                new RecipientStringTerm(Message.RecipientType.TO, search)),
-                            new OrTerm(new SubjectTerm(search), new BodyTerm(search))));
+        // The store was closed when synchronization reconnected or the server dropped the folder
+        if (ifolder != null && !ifolder.isOpen()) {
+            Log.i(Helper.TAG, "Boundary folder closed");
+            release();
+        }
+
+        if (uids == null) {
+            if (lease == null) {
+                Log.i(Helper.TAG, "Boundary leasing account=" + account.name);
+                lease = ImapPool.getInstance().lease(context, account);
             }
-            Log.i(Helper.TAG, "Boundary found messages=" + imessages.length);
 
-            index = imessages.length - 1;
+            // A new search reuses the open folder
+            if (ifolder == null) {
+                Log.i(Helper.TAG, "Boundary opening folder=" + folder.name);
+                ifolder = (IMAPFolder) lease.store.getFolder(folder.name);
+                ifolder.open(Folder.READ_WRITE);
+            }
+
+            // Only UIDs, messages are created for the requested pages
+            boolean sort = lease.hasCapability("SORT");
+            boolean esearch = lease.hasCapability("ESEARCH");
+            Log.i(Helper.TAG, "Boundary searching=" + search + " sort=" + sort + " esearch=" + esearch);
+            uids = ImapHelper.search(ifolder, search, sort, esearch);
+            Log.i(Helper.TAG, "Boundary found messages=" + uids.size());
         }
 
         int count = 0;
-        while (index >= 0 && count < pageSize) {
-            Log.i(Helper.TAG, "Boundary index=" + index);
-            int from = Math.max(0, index - (pageSize - count) + 1);
-            Message[] isub = Arrays.copyOfRange(imessages, from, index + 1);
-            index -= (pageSize - count);
+        while (count < pageSize) {
+            long[] page = uids.next(pageSize - count);
+            if (page.length == 0) {
+                break;
+            }
+            Log.i(Helper.TAG, "Boundary page uids=" + page.length);
+
+            // Expunged messages are null
+            List<Message> found = new ArrayList<>();
+            for (Message imessage : ifolder.getMessagesByUID(page)) {
+                if (imessage != null) {
+                    found.add(imessage);
+                }
+            }
+            Message[] isub = found.toArray(new Message[0]);
 
             FetchProfile fp = new FetchProfile();
             fp.add(FetchProfile.Item.ENVELOPE);
@@ -134,11 +140,13 @@ public class ViewModelBrowse extends ViewModel {
             fp.add(FetchProfile.Item.SIZE);
             fp.add(IMAPFolder.FetchProfileItem.INTERNALDATE);
             ifolder.fetch(isub, fp);
+            ContactCache.getInstance(context).prefetch(Arrays.asList(isub));
 
             try {
                 db.beginTransaction();
 
-                for (int j = isub.length - 1; j >= 0; j--) {
+                // Newest first
+                for (int j = 0; j < isub.length; j++) {
                     try {
                         long uid = ifolder.getUID(isub[j]);
                         Log.i(Helper.TAG, "Boundary sync uid=" + uid);
@@ -173,16 +181,40 @@ public class ViewModelBrowse extends ViewModel {
     void clear() {
         Log.i(Helper.TAG, "Boundary clear");
         try {
-            if (istore != null) {
-                istore.close();
-            }
-        } catch (Throwable ex) {
-            Log.e(Helper.TAG, "Boundary " + ex + "\n" + Log.getStackTraceString(ex));
+            release();
         } finally {
             context = null;
-            istore = null;
-            ifolder = null;
-            imessages = null;
         }
     }
+
+    // Closing the folder returns its connection to the idle connections of the shared store.
+    // Closing talks to the server, so it is done in the background: set() and onCleared()
+    // are called on the main thread.
+    private void release() {
+        final IMAPFolder ifolder = this.ifolder;
+        final ImapPool.Lease lease = this.lease;
+        this.ifolder = null;
+        this.lease = null;
+        this.uids = null;
+        if (ifolder == null && lease == null) {
+            return;
+        }
+
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (ifolder != null && ifolder.isOpen()) {
+                        ifolder.close(false);
+                    }
+                } catch (Throwable ex) {
+                    Log.e(Helper.TAG, "Boundary " + ex + "\n" + Log.getStackTraceString(ex));
+                } finally {
+                    if (lease != null) {
+                        ImapPool.getInstance().release(lease, false);
+                    }
+                }
+            }
+        });
+    }
 }
@@ -0,0 +1,82 @@
+package org.dystopia.email;
+
+/*
+    This file is part of SimpleEmail.
+    Copyright 2018-2020, Distopico (dystopia project) <distopico@riseup.net> and contributors
+
+    This program  is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program  is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ImapHelperTest {
+    @Test
+    public void esearchRanges() {
+        ImapHelper.UidList list = ImapHelper.parseEsearch("(TAG \"A12\") UID ALL 1:5,9");
+        assertEquals(6, list.size());
+        assertArrayEquals(new long[]{9, 5, 4}, list.next(3));
+        assertArrayEquals(new long[]{3, 2, 1}, list.next(3));
+        assertArrayEquals(new long[0], list.next(3));
+    }
+
+    @Test
+    public void esearchUnordered() {
+        ImapHelper.UidList list = ImapHelper.parseEsearch(" (TAG \"A1\") UID ALL 20,7:5,12:13");
+        assertEquals(6, list.size());
+        assertArrayEquals(new long[]{20, 13, 12, 7, 6, 5}, list.next(10));
+    }
+
+    @Test
+    public void esearchSingle() {
+        ImapHelper.UidList list = ImapHelper.parseEsearch("(TAG \"A1\") UID ALL 42");
+        assertEquals(1, list.size());
+        assertArrayEquals(new long[]{42}, list.next(1));
+        assertArrayEquals(new long[0], list.next(1));
+    }
+
+    @Test
+    public void esearchEmpty() {
+        ImapHelper.UidList list = ImapHelper.parseEsearch("(TAG \"A1\") UID");
+        assertEquals(0, list.size());
+        assertArrayEquals(new long[0], list.next(10));
+
+        list = ImapHelper.parseEsearch("(TAG \"A1\")");
+        assertEquals(0, list.size());
+        assertArrayEquals(new long[0], list.next(10));
+    }
+
+    @Test
+    public void esearchCount() {
+        // Servers may return more than was asked for
+        ImapHelper.UidList list = ImapHelper.parseEsearch("(TAG \"A1\") UID COUNT 3 ALL 2:4");
+        assertEquals(3, list.size());
+        assertArrayEquals(new long[]{4, 3}, list.next(2));
+        assertArrayEquals(new long[]{2}, list.next(2));
+    }
+
+    @Test
+    public void pages() {
+        ImapHelper.UidList list = new ImapHelper.UidList(new long[]{9, 7, 3}, null);
+        assertEquals(3, list.size());
+        assertArrayEquals(new long[]{9, 7}, list.next(2));
+        assertArrayEquals(new long[]{3}, list.next(2));
+        assertArrayEquals(new long[0], list.next(2));
+
+        assertEquals(0, new ImapHelper.UidList(new long[0], null).size());
+    }
+}
@@ -0,0 +1,90 @@
+package org.dystopia.email;
+
+/*
+    This file is part of SimpleEmail.
+    Copyright 2018-2020, Distopico (dystopia project) <distopico@riseup.net> and contributors
+
+    This program  is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program  is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MessageIdFilterTest {
+    private static final int CAPACITY = 1000;
+
+    private static String msgid(String prefix, int i) {
+        return "<" + prefix + i + "." + (i * 7919) + "@example.org>";
+    }
+
+    @Test
+    public void noFalseNegatives() {
+        MessageIdFilter filter = new MessageIdFilter(CAPACITY);
+        for (int i = 0; i < CAPACITY; i++) {
+            filter.add(msgid("added", i));
+        }
+        for (int i = 0; i < CAPACITY; i++) {
+            assertTrue(msgid("added", i), filter.mightContain(msgid("added", i)));
+        }
+    }
+
+    @Test
+    public void fewFalsePositives() {
+        MessageIdFilter filter = new MessageIdFilter(CAPACITY);
+        for (int i = 0; i < CAPACITY; i++) {
+            filter.add(msgid("added", i));
+        }
+        int positives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.mightContain(msgid("other", i))) {
+                positives++;
+            }
+        }
+        // About 1% expected
+        assertTrue("false positives=" + positives, positives < 300);
+    }
+
+    @Test
+    public void saturated() {
+        MessageIdFilter filter = new MessageIdFilter(CAPACITY);
+        for (int i = 0; i < CAPACITY; i++) {
+            filter.add(msgid("added", i));
+        }
+        int positives = 0;
+        for (int i = 0; i < 100; i++) {
+            if (filter.mightContain(msgid("other", i))) {
+                positives++;
+            }
+        }
+        assertTrue(positives < 100);
+
+        // More Message-IDs than the filter was sized for: always look up
+        filter.add(msgid("added", CAPACITY));
+        for (int i = 0; i < 100; i++) {
+            assertTrue(filter.mightContain(msgid("other", i)));
+        }
+    }
+
+    @Test
+    public void nullAndOwn() {
+        MessageIdFilter filter = new MessageIdFilter(CAPACITY);
+        filter.add(null);
+        assertFalse(filter.mightContain(null));
+        assertFalse(filter.mightContain(msgid("other", 1)));
+        assertTrue(filter.mightContain("<1." + BuildConfig.APPLICATION_ID + "@localhost>"));
+    }
+}
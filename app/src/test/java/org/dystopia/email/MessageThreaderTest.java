@@ -0,0 +1,153 @@
+package org.dystopia.email;
+
+/*
+    This file is part of SimpleEmail.
+    Copyright 2018-2020, Distopico (dystopia project) <distopico@riseup.net> and contributors
+
+    This program  is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program  is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class MessageThreaderTest {
+    private static final long ACCOUNT = 1;
+
+    // In memory reference and message tables of one account
+    private static class Store implements MessageThreader.Store {
+        final Map<String, String> references = new HashMap<>(); // msgid: thread
+        final Map<String, String> messages = new HashMap<>(); // msgid: thread
+        int merges = 0;
+
+        @Override
+        public List<EntityReference> getReferences(long account, List<String> msgids) {
+            List<EntityReference> result = new ArrayList<>();
+            for (String msgid : msgids) {
+                if (references.containsKey(msgid)) {
+                    EntityReference reference = new EntityReference();
+                    reference.account = account;
+                    reference.msgid = msgid;
+                    reference.thread = references.get(msgid);
+                    result.add(reference);
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public void insertReference(EntityReference reference) {
+            references.put(reference.msgid, reference.thread);
+        }
+
+        @Override
+        public void merge(long account, String from, String to) {
+            merges++;
+            for (Map<String, String> table : Arrays.asList(references, messages)) {
+                for (Map.Entry<String, String> entry : table.entrySet()) {
+                    if (entry.getValue().equals(from)) {
+                        entry.setValue(to);
+                    }
+                }
+            }
+        }
+
+        // Like synchronizeMessage storing a new message
+        String receive(String msgid, String inreplyto, String... refs) {
+            List<String> msgids = MessageThreader.getMsgIds(refs, inreplyto, msgid);
+            String thread = MessageThreader.getThread(this, ACCOUNT, msgids, fallback(msgid, refs));
+            messages.put(msgid, thread);
+            return thread;
+        }
+
+        // Like MessageHelper.getThreadId
+        private static String fallback(String msgid, String[] refs) {
+            return (refs.length > 0 ? refs[0] : msgid);
+        }
+    }
+
+    @Test
+    public void msgIds() {
+        assertEquals(Arrays.asList("<a>", "<b>", "<c>", "<d>"),
+            MessageThreader.getMsgIds(new String[]{"<a>", "", "<b>", "<a>"}, "<b> (comment) <c>", "<d>"));
+        assertEquals(Arrays.asList("<d>"),
+            MessageThreader.getMsgIds(new String[0], null, "<d>"));
+        assertEquals(new ArrayList<String>(),
+            MessageThreader.getMsgIds(new String[0], null, null));
+    }
+
+    @Test
+    public void rootNearestWins() {
+        Store store = new Store();
+        store.references.put("<a>", "root");
+        store.references.put("<b>", "parent");
+        store.messages.put("<b>", "parent");
+
+        assertEquals("root", store.receive("<c>", "<b>", "<a>", "<b>"));
+        assertEquals(1, store.merges);
+
+        // Messages and references of the other thread were merged
+        assertEquals("root", store.messages.get("<b>"));
+        assertEquals("root", store.references.get("<a>"));
+        assertEquals("root", store.references.get("<b>"));
+        assertEquals("root", store.references.get("<c>"));
+    }
+
+    @Test
+    public void knownThread() {
+        Store store = new Store();
+        assertEquals("<a>", store.receive("<a>", null));
+        assertEquals("<a>", store.receive("<b>", "<a>", "<a>"));
+        assertEquals("<a>", store.receive("<c>", "<b>", "<a>", "<b>"));
+        assertEquals(0, store.merges);
+    }
+
+    @Test
+    public void missingParent() {
+        Store store = new Store();
+        // Siblings sharing only a parent which is never received
+        String thread = store.receive("<b>", "<a>", "<a>");
+        assertEquals(thread, store.receive("<c>", "<a>", "<a>"));
+        assertEquals(0, store.merges);
+    }
+
+    @Test
+    public void outOfOrder() {
+        Store store = new Store();
+        // Grandchild with only its parent as reference, then a child of the root
+        String x = store.receive("<x>", "<b>", "<b>");
+        String y = store.receive("<y>", "<a>", "<a>");
+        assertEquals("<b>", x);
+        assertEquals("<a>", y);
+
+        // The parent links both threads, the thread nearest to the root wins
+        assertEquals("<a>", store.receive("<b>", "<a>", "<a>"));
+        assertEquals(1, store.merges);
+
+        // Finally the root itself
+        assertEquals("<a>", store.receive("<a>", null));
+
+        for (String msgid : Arrays.asList("<a>", "<b>", "<x>", "<y>")) {
+            assertEquals(msgid, "<a>", store.messages.get(msgid));
+            assertEquals(msgid, "<a>", store.references.get(msgid));
+        }
+    }
+}
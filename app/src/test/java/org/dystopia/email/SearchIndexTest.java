@@ -0,0 +1,52 @@
+package org.dystopia.email;
+
+/*
+    This file is part of SimpleEmail.
+    Copyright 2018-2020, Distopico (dystopia project) <distopico@riseup.net> and contributors
+
+    This program  is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program  is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SearchIndexTest {
+    @Test
+    public void words() {
+        assertEquals("\"invoice*\"", SearchIndex.getMatch("invoice"));
+        assertEquals("\"invoice*\" \"march*\"", SearchIndex.getMatch("  invoice \t march "));
+    }
+
+    @Test
+    public void quotes() {
+        assertEquals("\"invoice*\" \"march*\"", SearchIndex.getMatch("\"invoice march\""));
+        assertEquals("\"oreilly*\"", SearchIndex.getMatch("o\"reilly"));
+        assertEquals("", SearchIndex.getMatch("\" \"\""));
+    }
+
+    @Test
+    public void syntax() {
+        // Operators and special characters are searched for literally
+        assertEquals("\"a*\" \"OR*\" \"b*\"", SearchIndex.getMatch("a OR b"));
+        assertEquals("\"-spam*\" \"NEAR(x*\" \"y)*\" \"sub:*\"", SearchIndex.getMatch("-spam NEAR(x y) sub:"));
+    }
+
+    @Test
+    public void empty() {
+        assertEquals("", SearchIndex.getMatch(""));
+        assertEquals("", SearchIndex.getMatch("   "));
+    }
+}
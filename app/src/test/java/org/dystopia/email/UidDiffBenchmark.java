@@ -0,0 +1,81 @@
+package org.dystopia.email;
+
+/*
+    This file is part of SimpleEmail.
+    Copyright 2018-2020, Distopico (dystopia project) <distopico@riseup.net> and contributors
+
+    This program  is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program  is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares {@link UidDiff#removed} with removing every remote UID from a boxed list of local UIDs,
+ * as synchronizeMessages did before. Not a unit test, run its main by hand with the unit test classes.
+ */
+public class UidDiffBenchmark {
+    private static final int[] SIZES = new int[]{10000, 100000, 1000000};
+
+    public static void main(String[] args) {
+        for (int size : SIZES) {
+            long[] local = new long[size];
+            long[] remote = new long[size];
+            fill(new Random(size), local, remote);
+
+            // Warm up
+            UidDiff.removed(local, remote);
+
+            long start = System.nanoTime();
+            int removed = UidDiff.removed(local, remote).length;
+            long diff = (System.nanoTime() - start) / 1000000L;
+
+            start = System.nanoTime();
+            int listed = listRemove(local, remote).size();
+            long list = (System.nanoTime() - start) / 1000000L;
+
+            System.out.println("uids=" + size + " removed=" + removed + "/" + listed
+                + " UidDiff=" + diff + " ms List.remove=" + list + " ms");
+        }
+    }
+
+    // Like a mailbox: both sides in UID order, about 1% expunged remotely and 1% new
+    private static void fill(Random random, long[] local, long[] remote) {
+        long uid = 1;
+        int r = 0;
+        for (int i = 0; i < local.length; i++) {
+            local[i] = uid;
+            if (random.nextInt(100) != 0 && r < remote.length) {
+                remote[r++] = uid;
+            }
+            uid += 1 + random.nextInt(2);
+        }
+        while (r < remote.length) {
+            remote[r++] = uid++;
+        }
+    }
+
+    private static List<Long> listRemove(long[] local, long[] remote) {
+        List<Long> uids = new ArrayList<>(local.length);
+        for (long uid : local) {
+            uids.add(uid);
+        }
+        for (long uid : remote) {
+            uids.remove(uid);
+        }
+        return uids;
+    }
+}
@@ -0,0 +1,73 @@
+package org.dystopia.email;
+
+/*
+    This file is part of SimpleEmail.
+    Copyright 2018-2020, Distopico (dystopia project) <distopico@riseup.net> and contributors
+
+    This program  is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program  is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class UidDiffTest {
+    @Test
+    public void removed() {
+        assertArrayEquals(new long[]{1, 4},
+            UidDiff.removed(new long[]{1, 2, 3, 4, 5}, new long[]{2, 3, 5, 6}));
+    }
+
+    @Test
+    public void unsortedAndDuplicates() {
+        assertArrayEquals(new long[]{7, 9},
+            UidDiff.removed(new long[]{9, 3, 7, 3, 9}, new long[]{8, 3, 3}));
+    }
+
+    @Test
+    public void empty() {
+        assertArrayEquals(new long[0], UidDiff.removed(new long[0], new long[]{1, 2}));
+        assertArrayEquals(new long[]{1, 2}, UidDiff.removed(new long[]{2, 1}, new long[0]));
+        assertArrayEquals(new long[0], UidDiff.removed(new long[]{1, 2}, new long[]{2, 1}));
+    }
+
+    @Test
+    public void large() {
+        Random random = new Random(42);
+        long[] local = new long[100000];
+        long[] remote = new long[100000];
+        for (int i = 0; i < local.length; i++) {
+            local[i] = random.nextInt(200000);
+            remote[i] = random.nextInt(200000);
+        }
+
+        TreeSet<Long> expected = new TreeSet<>();
+        for (long uid : local) {
+            expected.add(uid);
+        }
+        for (long uid : remote) {
+            expected.remove(uid);
+        }
+        long[] e = new long[expected.size()];
+        int n = 0;
+        for (long uid : expected) {
+            e[n++] = uid;
+        }
+
+        assertArrayEquals(e, UidDiff.removed(local, remote));
+    }
+}